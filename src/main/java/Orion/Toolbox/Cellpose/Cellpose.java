@@ -17,7 +17,13 @@ import ij.IJ;
 
 public class Cellpose {
 
-    static void execute(List<String> options, CellposeTaskSettings settings, Consumer<InputStream> outputHandler) throws IOException, InterruptedException {
+    /**
+     * Command line running python of the Cellpose environment
+     * @param python_args python arguments, module or script followed by its options
+     * @param settings environment type and directory
+     * @return 
+     */
+    static List<String> command(List<String> python_args, CellposeTaskSettings settings) {
         List<String> cmd = new ArrayList<>();
         List<String> start_cmd = null ;
 
@@ -40,15 +46,15 @@ public class Cellpose {
                 cmd.addAll(conda_activate_cmd);
                 // After starting the env we can now use cellpose
                 cmd.add("&");// to have a second command
-                List<String> cellpose_args_cmd = Arrays.asList("python", "-Xutf8", "-m", "cellpose");
+                List<String> cellpose_args_cmd = Arrays.asList("python", "-Xutf8");
                 cmd.addAll(cellpose_args_cmd);
-                // input options
-                cmd.addAll(options);
+                // module or script and its options
+                cmd.addAll(python_args);
             } else if (IJ.isMacOSX() || IJ.isLinux()) {
                 // instead of conda activate (so much headache!!!) specify the python to use
                 String python_path = settings.cellposeEnvDirectory+separatorChar+"bin"+separatorChar+"python";
-                List<String> cellpose_args_cmd = new ArrayList<>(Arrays.asList( python_path , "-m","cellpose"));
-                cellpose_args_cmd.addAll(options);
+                List<String> cellpose_args_cmd = new ArrayList<>(Arrays.asList( python_path ));
+                cellpose_args_cmd.addAll(python_args);
 
                 // convert to a string
                 cellpose_args_cmd = cellpose_args_cmd.stream().map(s -> {
@@ -75,9 +81,31 @@ public class Cellpose {
         } else {
             throw new UnsupportedOperationException("Virtual env type unrecognized!");
         }
+        return cmd;
+    }
+
+    /**
+     * Limit the threads of the numerical libraries of python (torch, numpy) to settings.numThreads,
+     * so that concurrent Cellpose processes share the cores instead of oversubscribing them
+     * @param pb
+     * @param settings
+     */
+    static void limitThreads(ProcessBuilder pb, CellposeTaskSettings settings) {
+        if (settings.numThreads <= 0) return;
+        String n = String.valueOf(settings.numThreads);
+        pb.environment().put("OMP_NUM_THREADS", n);
+        pb.environment().put("MKL_NUM_THREADS", n);
+        pb.environment().put("OPENBLAS_NUM_THREADS", n);
+    }
+
+    static void execute(List<String> options, CellposeTaskSettings settings, Consumer<InputStream> outputHandler) throws IOException, InterruptedException {
+        List<String> python_args = new ArrayList<>(Arrays.asList("-m", "cellpose"));
+        python_args.addAll(options);
+        List<String> cmd = command(python_args, settings);
 
         System.out.println(cmd.toString().replace(",", ""));
         ProcessBuilder pb = new ProcessBuilder(cmd).redirectErrorStream(true);
+        limitThreads(pb, settings);
 
         Process p = pb.start();
         Thread t = new Thread(Thread.currentThread().getName() + "-" + p.hashCode()) {
@@ -0,0 +1,290 @@
+package Orion.Toolbox.Cellpose;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+/**
+ * Image exchange with the Cellpose worker through .npy files mapped in memory.
+ *
+ * Files are created in a tmpfs directory (/dev/shm) when available, so nothing reaches the disk:
+ * input planes are written straight from the ImagePlus pixel arrays into the mapped file and
+ * mask planes are read from the mapped file into the planes of a preallocated ImageStack.
+ * Files are mapped one plane at a time at long offsets, so stacks can exceed 2 GB.
+ * On Windows, where a mapped file can't be deleted until its mapping is garbage collected,
+ * planes go through heap buffers and plain channel reads and writes instead.
+ */
+public class CellposeExchange {
+
+    private static final File SHM = new File("/dev/shm");
+    // planes mapped in memory, otherwise copied through heap buffers
+    private static final boolean MAPPED = !IJ.isWindows();
+    // largest pixel type of mask files
+    private static final int MAX_MASK_BYTES = 8;
+
+    /**
+     * New empty directory for one run, in tmpfs if available, otherwise in the ImageJ temp directory
+     * @param prefix
+     * @return
+     * @throws IOException
+     */
+    public static File createTempDir(String prefix) throws IOException {
+        File root = (SHM.isDirectory() && SHM.canWrite()) ? SHM : new File(IJ.getDirectory("Temp"));
+        return Files.createTempDirectory(root.toPath(), prefix + "-").toFile();
+    }
+
+    /**
+     * Delete a run directory and its files
+     * @param dir
+     */
+    public static void deleteDir(File dir) {
+        File[] contents = dir.listFiles();
+        if (contents != null)
+            for (File f : contents)
+                f.delete();
+        dir.delete();
+    }
+
+    /**
+     * Check that pixels can be written as .npy (8-bit, 16-bit or 32-bit, no RGB)
+     * and that one plane of the image or of its masks can be mapped (less than 2 GB)
+     */
+    public static boolean isSupported(ImagePlus imp) {
+        return imp.getBitDepth() != 24 && (long)imp.getWidth() * imp.getHeight() * MAX_MASK_BYTES <= Integer.MAX_VALUE;
+    }
+
+    /**
+     * Write all channels and slices of one frame as a .npy array (Z, C, Y, X), singleton Z and C dropped
+     * @param f file
+     * @param imp image
+     * @param frame frame (1-based)
+     * @throws IOException
+     */
+    public static void writeFrame(File f, ImagePlus imp, int frame) throws IOException {
+        final int nC = imp.getNChannels(), nZ = imp.getNSlices();
+        final int w = imp.getWidth(), h = imp.getHeight();
+        final ImageStack stack = imp.getStack();
+        final int bytesPerPixel = imp.getBitDepth() / 8;
+        final String descr = (bytesPerPixel == 1) ? "|u1" : (bytesPerPixel == 2) ? "<u2" : "<f4";
+        String shape = "";
+        if (nZ > 1) shape += nZ + ", ";
+        if (nC > 1) shape += nC + ", ";
+        shape += h + ", " + w;
+        final byte[] header = header(descr, shape);
+        final long planeBytes = (long)w * h * bytesPerPixel;
+        try (RandomAccessFile raf = new RandomAccessFile(f, "rw"); FileChannel ch = raf.getChannel()) {
+            raf.setLength(header.length + nZ * nC * planeBytes);
+            raf.write(header);
+            long pos = header.length;
+            final ByteBuffer heap = MAPPED ? null : ByteBuffer.allocate((int)planeBytes);
+            for (int z = 1; z <= nZ; z++) {
+                for (int c = 1; c <= nC; c++) {
+                    // no force(): the worker reads the same page cache, and tmpfs has no disk to sync
+                    final ByteBuffer buf = MAPPED ? ch.map(FileChannel.MapMode.READ_WRITE, pos, planeBytes) : heap;
+                    buf.clear();
+                    buf.order(ByteOrder.LITTLE_ENDIAN);
+                    final Object pixels = stack.getPixels(imp.getStackIndex(c, z, frame));
+                    if (pixels instanceof byte[]) buf.put((byte[])pixels);
+                    else if (pixels instanceof short[]) buf.asShortBuffer().put((short[])pixels);
+                    else buf.asFloatBuffer().put((float[])pixels);
+                    if (!MAPPED) {
+                        buf.clear();
+                        while (buf.hasRemaining())
+                            ch.write(buf, pos + buf.position());
+                    }
+                    pos += planeBytes;
+                }
+            }
+        }
+    }
+
+    /**
+     * .npy v1.0 header, padded to a multiple of 64 bytes
+     */
+    private static byte[] header(String descr, String shape) {
+        if (!shape.contains(",")) shape += ",";
+        String dict = "{'descr': '" + descr + "', 'fortran_order': False, 'shape': (" + shape + "), }";
+        final int len = 10 + dict.length() + 1;
+        final int padded = ((len + 63) / 64) * 64;
+        StringBuilder sb = new StringBuilder(dict);
+        for (int i = len; i < padded; i++) sb.append(' ');
+        sb.append('\n');
+        final byte[] d = sb.toString().getBytes(StandardCharsets.US_ASCII);
+        final ByteBuffer b = ByteBuffer.allocate(10 + d.length).order(ByteOrder.LITTLE_ENDIAN);
+        b.put((byte)0x93).put("NUMPY".getBytes(StandardCharsets.US_ASCII)).put((byte)1).put((byte)0);
+        b.putShort((short)d.length);
+        b.put(d);
+        return b.array();
+    }
+
+    /**
+     * Header of a mask file: dtype and shape
+     */
+    public static class NpyHeader {
+        public final String descr;
+        public final int[] shape;
+        final int offset;
+
+        NpyHeader(String descr, int[] shape, int offset) {
+            this.descr = descr;
+            this.shape = shape;
+            this.offset = offset;
+        }
+
+        /**
+         * Labels can exceed 65535
+         */
+        public boolean isWide() {
+            return !(descr.endsWith("u1") || descr.endsWith("i1") || descr.endsWith("u2"));
+        }
+
+        public int planes() {
+            int n = 1;
+            for (int d = 0; d < shape.length - 2; d++) n *= shape[d];
+            return n;
+        }
+    }
+
+    public static NpyHeader readHeader(File f) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(f, "r")) {
+            final byte[] magic = new byte[10];
+            raf.readFully(magic);
+            if (magic[0] != (byte)0x93 || magic[1] != 'N')
+                throw new IOException(f + " is not a .npy file");
+            int len, offset;
+            if (magic[6] == 1) {
+                len = (magic[8] & 0xff) | (magic[9] & 0xff) << 8;
+                offset = 10;
+            } else {
+                final byte[] more = new byte[2];
+                raf.readFully(more);
+                len = (magic[8] & 0xff) | (magic[9] & 0xff) << 8 | (more[0] & 0xff) << 16 | (more[1] & 0xff) << 24;
+                offset = 12;
+            }
+            final byte[] d = new byte[len];
+            raf.readFully(d);
+            final String dict = new String(d, StandardCharsets.US_ASCII);
+            if (dict.contains("'fortran_order': True"))
+                throw new IOException(f + ": Fortran order not supported");
+            final String descr = dict.replaceAll("(?s).*'descr':\\s*'([^']*)'.*", "$1");
+            final String shape = dict.replaceAll("(?s).*'shape':\\s*\\(([^)]*)\\).*", "$1");
+            final int[] dims = Arrays.stream(shape.split(",")).map(String::trim).filter(s -> !s.isEmpty()).mapToInt(Integer::parseInt).toArray();
+            return new NpyHeader(descr, dims, offset + len);
+        }
+    }
+
+    /**
+     * Read the mask planes of a .npy file into stack planes firstSlice, firstSlice+1, ...
+     * Stack planes must be short[] (labels < 65536) or float[]
+     * @param f file
+     * @param stack preallocated stack
+     * @param firstSlice first plane (1-based)
+     * @return number of planes read
+     * @throws IOException
+     */
+    public static int readMasks(File f, ImageStack stack, int firstSlice) throws IOException {
+        final NpyHeader hd = readHeader(f);
+        final int h = hd.shape[hd.shape.length - 2], w = hd.shape[hd.shape.length - 1];
+        if (w != stack.getWidth() || h != stack.getHeight())
+            throw new IOException(f + ": masks size " + w + "x" + h + " differs from image size");
+        final int n = hd.planes();
+        final String type = hd.descr.substring(1);
+        final int bytes = Integer.parseInt(type.substring(1));
+        final long planeBytes = (long)w * h * bytes;
+        if (planeBytes > Integer.MAX_VALUE)
+            throw new IOException(f + ": mask planes larger than 2 GB");
+        final ByteOrder order = hd.descr.charAt(0) == '>' ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+        try (RandomAccessFile raf = new RandomAccessFile(f, "r"); FileChannel ch = raf.getChannel()) {
+            final ByteBuffer heap = MAPPED ? null : ByteBuffer.allocate((int)planeBytes);
+            for (int z = 0; z < n; z++) {
+                final long pos = hd.offset + z * planeBytes;
+                final ByteBuffer buf;
+                if (MAPPED) {
+                    buf = ch.map(FileChannel.MapMode.READ_ONLY, pos, planeBytes);
+                } else {
+                    buf = heap;
+                    buf.clear();
+                    while (buf.hasRemaining())
+                        if (ch.read(buf, pos + buf.position()) < 0)
+                            throw new IOException(f + ": truncated mask file");
+                    buf.clear();
+                }
+                buf.order(order);
+                readPlane(f, buf, type, stack.getPixels(firstSlice + z), w * h);
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Read one mask plane into short[] or float[] pixels, one loop per dtype
+     */
+    private static void readPlane(File f, ByteBuffer buf, String type, Object plane, int size) throws IOException {
+        final short[] s = (plane instanceof short[]) ? (short[])plane : null;
+        final float[] p = (s == null) ? (float[])plane : null;
+        switch (type) {
+            case "u1": case "i1":
+                for (int i = 0; i < size; i++) put(s, p, i, buf.get(i) & 0xff);
+                break;
+            case "u2": {
+                final ShortBuffer b = buf.asShortBuffer();
+                if (s != null) b.get(s);
+                else for (int i = 0; i < size; i++) p[i] = b.get(i) & 0xffff;
+                break;
+            }
+            case "i2": {
+                final ShortBuffer b = buf.asShortBuffer();
+                for (int i = 0; i < size; i++) put(s, p, i, b.get(i));
+                break;
+            }
+            case "u4": {
+                final IntBuffer b = buf.asIntBuffer();
+                for (int i = 0; i < size; i++) put(s, p, i, b.get(i) & 0xffffffffL);
+                break;
+            }
+            case "i4": {
+                final IntBuffer b = buf.asIntBuffer();
+                for (int i = 0; i < size; i++) put(s, p, i, b.get(i));
+                break;
+            }
+            case "u8": case "i8": {
+                final LongBuffer b = buf.asLongBuffer();
+                for (int i = 0; i < size; i++) put(s, p, i, b.get(i));
+                break;
+            }
+            case "f4": {
+                final FloatBuffer b = buf.asFloatBuffer();
+                if (p != null) b.get(p);
+                else for (int i = 0; i < size; i++) s[i] = (short)b.get(i);
+                break;
+            }
+            case "f8": {
+                final DoubleBuffer b = buf.asDoubleBuffer();
+                for (int i = 0; i < size; i++) put(s, p, i, b.get(i));
+                break;
+            }
+            default:
+                throw new IOException(f + ": unsupported dtype " + type);
+        }
+    }
+
+    private static void put(short[] s, float[] p, int i, double v) {
+        if (s != null) s[i] = (short)v;
+        else p[i] = (float)v;
+    }
+}
@@ -0,0 +1,389 @@
+package Orion.Toolbox.Cellpose;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.stream.IntStream;
+
+/**
+ * Network outputs of Cellpose for one 2D image (flows and cell probability), kept to compute
+ * masks for other thresholds without running the network again.
+ *
+ * Masks are computed like the Cellpose dynamics: pixels with a cell probability above the threshold
+ * follow the flows, pixels converging to the same histogram peak make one mask, then masks whose
+ * flows (from heat diffusion inside the mask) differ too much from the network flows are removed,
+ * holes are filled and small masks removed. Masks of the last cell probability threshold are kept,
+ * so changing only the flow threshold just filters them.
+ */
+public class CellposeFlows {
+
+    private static final int NITER = 200;
+    private static final int MIN_SIZE = 15;
+    private static final int RPAD = 20;
+
+    private final int width, height;
+    private final float[] dy, dx, cellprob;
+    // size of the masks returned (image size, flows may be at the rescaled size)
+    private int outWidth, outHeight;
+
+    // masks and flow errors of the last cell probability threshold
+    private double lastCellprob = Double.NaN;
+    private int[] lastMasks;
+    private double[] lastErrors;
+
+    public CellposeFlows(int width, int height, float[] dy, float[] dx, float[] cellprob) {
+        this.width = width;
+        this.height = height;
+        this.dy = dy;
+        this.dx = dx;
+        this.cellprob = cellprob;
+        this.outWidth = width;
+        this.outHeight = height;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public float[] getCellProb() {
+        return cellprob;
+    }
+
+    /**
+     * Size of the masks returned, masks are resized (nearest neighbour) if it differs from the flows size
+     */
+    public CellposeFlows setOutputSize(int width, int height) {
+        this.outWidth = width;
+        this.outHeight = height;
+        return this;
+    }
+
+    /**
+     * Read flows saved by the worker, float32 array (3, Y, X): dy, dx, cell probability
+     * @param f
+     * @return
+     * @throws IOException
+     */
+    public static CellposeFlows read(File f) throws IOException {
+        CellposeExchange.NpyHeader hd = CellposeExchange.readHeader(f);
+        if (hd.shape.length != 3 || hd.shape[0] != 3)
+            throw new IOException(f + ": flows of a 2D image expected, shape " + Arrays.toString(hd.shape));
+        int h = hd.shape[1], w = hd.shape[2];
+        ImageStack stack = ImageStack.create(w, h, 3, 32);
+        CellposeExchange.readMasks(f, stack, 1);
+        return new CellposeFlows(w, h, (float[])stack.getPixels(1), (float[])stack.getPixels(2), (float[])stack.getPixels(3));
+    }
+
+    /**
+     * Run the network once on a 2D image with the persistent worker and keep its outputs
+     * @param settings model, diameter, channels (thresholds don't matter)
+     * @param imp 2D image, one slice and one frame
+     * @return
+     * @throws IOException
+     */
+    public static CellposeFlows compute(CellposeTaskSettings settings, ImagePlus imp) throws IOException {
+        if (imp.getNSlices() > 1 || imp.getNFrames() > 1 || !CellposeExchange.isSupported(imp))
+            throw new IOException("Cellpose flows: 2D gray level images only");
+        CellposeTaskSettings s = settings.copy().useWorker(true).keepFlows(true).use3D(false);
+        File dir = CellposeExchange.createTempDir("cellposeTemp");
+        try {
+            File img = new File(dir, "img.npy");
+            CellposeExchange.writeFrame(img, imp, 1);
+            s.setDatasetDir(dir.toString());
+            CellposeWorkerPool.get(s).eval(Collections.singletonList(img), s);
+            File f = new File(dir, "img_cp_flows.npy");
+            if (!f.exists())
+                throw new IOException("Cellpose flows not saved (omnipose and 3D models are not supported)");
+            return read(f).setOutputSize(imp.getWidth(), imp.getHeight());
+        } finally {
+            CellposeExchange.deleteDir(dir);
+        }
+    }
+
+    /**
+     * Masks for new thresholds
+     * @param cellprobThreshold cell probability threshold
+     * @param flowThreshold maximal flow error (0 = no filter)
+     * @return 32-bit label image
+     */
+    public synchronized ImageProcessor masks(double cellprobThreshold, double flowThreshold) {
+        if (cellprobThreshold != lastCellprob) {
+            lastMasks = dynamics(cellprobThreshold);
+            lastErrors = null;
+            lastCellprob = cellprobThreshold;
+        }
+        int[] masks = lastMasks.clone();
+        int nLabels = max(masks);
+        if (flowThreshold > 0 && nLabels > 0) {
+            if (lastErrors == null) lastErrors = flowErrors(lastMasks, nLabels);
+            for (int i = 0; i < masks.length; i++)
+                if (masks[i] > 0 && lastErrors[masks[i]] > flowThreshold) masks[i] = 0;
+        }
+        fillHolesAndRemoveSmall(masks);
+        float[] labels = new float[masks.length];
+        for (int i = 0; i < masks.length; i++) labels[i] = masks[i];
+        ImageProcessor ip = new FloatProcessor(width, height, labels);
+        if (outWidth != width || outHeight != height) {
+            ip.setInterpolationMethod(ImageProcessor.NONE);
+            ip = ip.resize(outWidth, outHeight);
+        }
+        return ip;
+    }
+
+    /**
+     * Masks before the flow error filter: flow following and clustering of the final positions
+     */
+    private int[] dynamics(double cellprobThreshold) {
+        final int[] cells = IntStream.range(0, width * height).filter(i -> cellprob[i] > cellprobThreshold).toArray();
+        final int[] masks = new int[width * height];
+        if (cells.length == 0) return masks;
+
+        // follow the flows of cell pixels (flows are zero outside cells), parallel over pixels
+        final int[] pos = new int[cells.length];
+        final int hw = width + 2*RPAD, hh = height + 2*RPAD;
+        IntStream.range(0, cells.length).parallel().forEach(k -> {
+            float y = cells[k] / width, x = cells[k] % width;
+            for (int t = 0; t < NITER; t++) {
+                final int y0 = (int)y, x0 = (int)x;
+                final int y1 = Math.min(y0 + 1, height - 1), x1 = Math.min(x0 + 1, width - 1);
+                final float fy = y - y0, fx = x - x0;
+                final float vy = interp(dy, cellprobThreshold, y0, x0, y1, x1, fy, fx);
+                final float vx = interp(dx, cellprobThreshold, y0, x0, y1, x1, fy, fx);
+                y = Math.min(height - 1, Math.max(0, y + vy));
+                x = Math.min(width - 1, Math.max(0, x + vx));
+            }
+            pos[k] = ((int)y + RPAD) * hw + (int)x + RPAD;
+        });
+
+        // histogram of the final positions, seeds at local maxima (5x5) of more than 10 pixels
+        final int[] hist = new int[hw * hh];
+        for (int p : pos) hist[p]++;
+        final int[] hmax = maxFilter(hist, hw, hh);
+        int[] seeds = IntStream.range(0, hist.length).filter(i -> hist[i] > 10 && hist[i] == hmax[i]).boxed()
+                .sorted((a, b) -> Integer.compare(hist[b], hist[a])).mapToInt(Integer::intValue).toArray();
+
+        // seeds grown 5 times over neighbours with more than 2 pixels, larger seeds first
+        final int[] peaks = new int[hist.length];
+        final int[] mark = new int[hist.length];
+        int stamp = 0;
+        for (int s = 0; s < seeds.length; s++) {
+            int[] pix = {seeds[s]};
+            for (int iter = 0; iter < 5; iter++) {
+                stamp++;
+                int[] next = new int[pix.length * 9];
+                int n = 0;
+                for (int p : pix) {
+                    final int py = p / hw, px = p % hw;
+                    for (int ey = py - 1; ey <= py + 1; ey++)
+                        for (int ex = px - 1; ex <= px + 1; ex++) {
+                            if (ey < 0 || ey >= hh || ex < 0 || ex >= hw) continue;
+                            final int e = ey * hw + ex;
+                            if (mark[e] == stamp || hist[e] <= 2) continue;
+                            mark[e] = stamp;
+                            next[n++] = e;
+                        }
+                }
+                pix = Arrays.copyOf(next, n);
+            }
+            for (int p : pix) peaks[p] = s + 1;
+        }
+
+        // masks of the pixels from their final position, masks larger than 40% of the image removed
+        int[] area = new int[seeds.length + 1];
+        for (int k = 0; k < cells.length; k++) {
+            masks[cells[k]] = peaks[pos[k]];
+            area[masks[cells[k]]]++;
+        }
+        final double big = 0.4 * width * height;
+        for (int i = 0; i < masks.length; i++)
+            if (masks[i] > 0 && area[masks[i]] > big) masks[i] = 0;
+        renumber(masks);
+        return masks;
+    }
+
+    /**
+     * Bilinear interpolation of a flow divided by 5, zero outside cells
+     */
+    private float interp(float[] flow, double th, int y0, int x0, int y1, int x1, float fy, float fx) {
+        return ((1 - fy) * ((1 - fx) * val(flow, th, y0 * width + x0) + fx * val(flow, th, y0 * width + x1))
+                + fy * ((1 - fx) * val(flow, th, y1 * width + x0) + fx * val(flow, th, y1 * width + x1))) / 5f;
+    }
+
+    private float val(float[] flow, double th, int i) {
+        return (cellprob[i] > th) ? flow[i] : 0;
+    }
+
+    private static int[] maxFilter(int[] h, int w, int ht) {
+        int[] rows = new int[h.length];
+        int[] res = new int[h.length];
+        for (int y = 0; y < ht; y++)
+            for (int x = 0; x < w; x++) {
+                int m = 0;
+                for (int e = Math.max(0, x - 2); e <= Math.min(w - 1, x + 2); e++) m = Math.max(m, h[y * w + e]);
+                rows[y * w + x] = m;
+            }
+        for (int y = 0; y < ht; y++)
+            for (int x = 0; x < w; x++) {
+                int m = 0;
+                for (int e = Math.max(0, y - 2); e <= Math.min(ht - 1, y + 2); e++) m = Math.max(m, rows[e * w + x]);
+                res[y * w + x] = m;
+            }
+        return res;
+    }
+
+    /**
+     * Pixels of each label, labels 1..nLabels
+     */
+    private static int[][] pixels(int[] masks, int nLabels) {
+        int[] count = new int[nLabels + 1];
+        for (int m : masks) count[m]++;
+        int[][] pix = new int[nLabels + 1][];
+        for (int l = 1; l <= nLabels; l++) pix[l] = new int[count[l]];
+        Arrays.fill(count, 0);
+        for (int i = 0; i < masks.length; i++)
+            if (masks[i] > 0) pix[masks[i]][count[masks[i]]++] = i;
+        return pix;
+    }
+
+    /**
+     * Mean squared difference between the flows of each mask (heat diffusion from its center)
+     * and the network flows divided by 5
+     */
+    private double[] flowErrors(int[] masks, int nLabels) {
+        final int[][] pix = pixels(masks, nLabels);
+        final double[] errors = new double[nLabels + 1];
+        IntStream.rangeClosed(1, nLabels).parallel().forEach(l -> {
+            final int[] p = pix[l];
+            if (p.length == 0) return;
+            int ymin = Integer.MAX_VALUE, ymax = 0, xmin = Integer.MAX_VALUE, xmax = 0;
+            final int[] ys = new int[p.length], xs = new int[p.length];
+            for (int k = 0; k < p.length; k++) {
+                ys[k] = p[k] / width;
+                xs[k] = p[k] % width;
+                ymin = Math.min(ymin, ys[k]); ymax = Math.max(ymax, ys[k]);
+                xmin = Math.min(xmin, xs[k]); xmax = Math.max(xmax, xs[k]);
+            }
+            // padded box, mask pixels at (y, x) box coordinates
+            final int lx = xmax - xmin + 3, ly = ymax - ymin + 3;
+            final int[] idx = new int[p.length];
+            for (int k = 0; k < p.length; k++) idx[k] = (ys[k] - ymin + 1) * lx + xs[k] - xmin + 1;
+
+            // center: mask pixel closest to the median
+            final double ymed = median(ys), xmed = median(xs);
+            int center = 0;
+            double dmin = Double.MAX_VALUE;
+            for (int k = 0; k < p.length; k++) {
+                final double d = (ys[k] - ymed) * (ys[k] - ymed) + (xs[k] - xmed) * (xs[k] - xmed);
+                if (d < dmin) { dmin = d; center = k; }
+            }
+
+            // heat diffusion from the center, 3x3 mean inside the mask
+            double[] T = new double[lx * ly];
+            final double[] next = new double[p.length];
+            final int niter = 2 * ((xmax - xmin) + (ymax - ymin));
+            for (int t = 0; t < niter; t++) {
+                T[idx[center]] += 1;
+                for (int k = 0; k < p.length; k++) {
+                    final int i = idx[k];
+                    next[k] = (T[i] + T[i - lx] + T[i + lx] + T[i - 1] + T[i + 1]
+                            + T[i - lx - 1] + T[i - lx + 1] + T[i + lx - 1] + T[i + lx + 1]) / 9;
+                }
+                for (int k = 0; k < p.length; k++) T[idx[k]] = next[k];
+            }
+            for (int k = 0; k < p.length; k++) T[idx[k]] = Math.log(1 + T[idx[k]]);
+
+            double err = 0;
+            for (int k = 0; k < p.length; k++) {
+                final int i = idx[k];
+                double my = T[i + lx] - T[i - lx], mx = T[i + 1] - T[i - 1];
+                final double norm = 1e-20 + Math.sqrt(my * my + mx * mx);
+                my /= norm;
+                mx /= norm;
+                final double ey = my - dy[p[k]] / 5, ex = mx - dx[p[k]] / 5;
+                err += ey * ey + ex * ex;
+            }
+            errors[l] = err / p.length;
+        });
+        return errors;
+    }
+
+    private static double median(int[] v) {
+        int[] s = v.clone();
+        Arrays.sort(s);
+        final int n = s.length;
+        return (n % 2 == 1) ? s[n / 2] : 0.5 * (s[n / 2 - 1] + s[n / 2]);
+    }
+
+    /**
+     * Remove masks smaller than MIN_SIZE, fill holes of the others, renumber
+     */
+    private void fillHolesAndRemoveSmall(int[] masks) {
+        final int nLabels = max(masks);
+        final int[][] pix = pixels(masks, nLabels);
+        for (int l = 1; l <= nLabels; l++) {
+            final int[] p = pix[l];
+            if (p.length == 0) continue;
+            if (p.length < MIN_SIZE) {
+                for (int i : p) masks[i] = 0;
+                continue;
+            }
+            int ymin = Integer.MAX_VALUE, ymax = 0, xmin = Integer.MAX_VALUE, xmax = 0;
+            for (int i : p) {
+                ymin = Math.min(ymin, i / width); ymax = Math.max(ymax, i / width);
+                xmin = Math.min(xmin, i % width); xmax = Math.max(xmax, i % width);
+            }
+            // background reachable from the padded box border
+            final int lx = xmax - xmin + 3, ly = ymax - ymin + 3;
+            final boolean[] outside = new boolean[lx * ly];
+            final boolean[] inMask = new boolean[lx * ly];
+            for (int i : p) inMask[(i / width - ymin + 1) * lx + i % width - xmin + 1] = true;
+            final int[] stack = new int[lx * ly];
+            int n = 0;
+            outside[0] = true;
+            stack[n++] = 0;
+            while (n > 0) {
+                final int b = stack[--n];
+                final int by = b / lx, bx = b % lx;
+                final int[] nb = {by > 0 ? b - lx : -1, by < ly - 1 ? b + lx : -1, bx > 0 ? b - 1 : -1, bx < lx - 1 ? b + 1 : -1};
+                for (int e : nb) {
+                    if (e < 0 || outside[e] || inMask[e]) continue;
+                    outside[e] = true;
+                    stack[n++] = e;
+                }
+            }
+            for (int by = 1; by < ly - 1; by++)
+                for (int bx = 1; bx < lx - 1; bx++)
+                    if (!outside[by * lx + bx] && !inMask[by * lx + bx])
+                        masks[(by + ymin - 1) * width + bx + xmin - 1] = l;
+        }
+        renumber(masks);
+    }
+
+    private static int max(int[] masks) {
+        int m = 0;
+        for (int v : masks) m = Math.max(m, v);
+        return m;
+    }
+
+    /**
+     * Consecutive labels, in increasing order of the old labels
+     */
+    private static void renumber(int[] masks) {
+        final int n = max(masks);
+        final int[] value = new int[n + 1];
+        for (int v : masks) if (v > 0) value[v] = 1;
+        int k = 0;
+        for (int l = 1; l <= n; l++) if (value[l] > 0) value[l] = ++k;
+        for (int i = 0; i < masks.length; i++) masks[i] = value[masks[i]];
+    }
+}
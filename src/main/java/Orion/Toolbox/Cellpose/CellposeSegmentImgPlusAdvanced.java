@@ -2,123 +2,286 @@ package Orion.Toolbox.Cellpose;
 
 import ij.IJ;
 import ij.ImagePlus;
+import ij.ImageStack;
 import ij.io.FileSaver;
-import ij.measure.Calibration;
-import ij.plugin.Concatenator;
 import ij.plugin.Duplicator;
-import ij.process.ImageConverter;
+import ij.process.ImageProcessor;
 
 import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class CellposeSegmentImgPlusAdvanced {
-    
+
+    // memory of one CPU Cellpose process (python, torch and model) when choosing the number of shards
+    private static final long PROCESS_MEMORY = 2L << 30;
+    // fewest threads given to one CPU Cellpose process when choosing the number of shards
+    private static final int MIN_PROCESS_THREADS = 4;
+
     CellposeTaskSettings settings;
     ImagePlus imp;
     ImagePlus cellpose_imp;
-    
+
     public CellposeSegmentImgPlusAdvanced(CellposeTaskSettings settings, ImagePlus imp) {
         this.settings = settings;
         this.imp = imp;
     }
-    
-    public ImagePlus run() {
-        
-        Calibration cal = imp.getCalibration();
-
-        // Create temp folder to temporarily save the current time-point of the imp
-        String tempDir = IJ.getDirectory("Temp");
-        File cellposeTempDir = new File(tempDir, "cellposeTemp");
-        cellposeTempDir.mkdir();
-
-        // When plugin crashes, image files can pile up in the temp folder, so we make sure to clear everything
-        File[] contents = cellposeTempDir.listFiles();
-        if (contents != null) {
-            for (File f : contents) {
-                f.delete();
-            }
-        }
 
-        // Add temp folder to the settings
-        settings.setDatasetDir(cellposeTempDir.toString());
+    public ImagePlus run() {
+        cellpose_imp = runBatch(settings, Collections.singletonList(imp), 0).get(0);
+        return cellpose_imp;
+    }
 
+    /**
+     * Segment several images with one Cellpose run per chunk, model loaded once per chunk instead of once per image
+     * Frames of a chunk are staged together and masks are mapped back to their image by file name
+     * On CPU, frames of a chunk can be split into shards run by concurrent Cellpose processes (settings.setShards)
+     * @param settings
+     * @param imps images
+     * @param maxChunkBytes maximal size of the pixels staged at once (0 = one chunk), bounds temp disk/memory use
+     * @return masks of each image, null if one of its frames failed
+     */
+    public static List<ImagePlus> runBatch(CellposeTaskSettings settings, List<ImagePlus> imps, long maxChunkBytes) {
+        List<ImagePlus> results = new ArrayList<>(Collections.nCopies(imps.size(), (ImagePlus)null));
+        if (imps.isEmpty()) return results;
 
         if (settings.use3D == true) {
-            if (imp.getNSlices() == 1) 
+            if (imps.get(0).getNSlices() == 1) {
                 System.out.println("WARNING: Can't use 3D mode on 2D image. 2D mode will be used");
                 settings.use3D(false);
+            }
+        }
+
+        // Masks of each image, preallocated
+        ImageStack[] masks = new ImageStack[imps.size()];
+        boolean[] failed = new boolean[imps.size()];
+        for (int i = 0; i < imps.size(); i++) {
+            ImagePlus imp = imps.get(i);
+            masks[i] = ImageStack.create(imp.getWidth(), imp.getHeight(), imp.getNSlices() * imp.getNFrames(), 16);
+        }
+
+        // Can't process time-lapse directly, frames are the units sent to Cellpose, as (image, frame)
+        List<int[]> frames = new ArrayList<>();
+        for (int i = 0; i < imps.size(); i++)
+            for (int t_idx = 1; t_idx <= imps.get(i).getNFrames(); t_idx++)
+                frames.add(new int[]{i, t_idx});
+
+        int start = 0;
+        while (start < frames.size()) {
+            int end = start;
+            long bytes = 0;
+            while (end < frames.size()) {
+                long frameBytes = frameBytes(imps.get(frames.get(end)[0]));
+                if (end > start && maxChunkBytes > 0 && bytes + frameBytes > maxChunkBytes) break;
+                bytes += frameBytes;
+                end++;
+            }
+            runChunk(settings, imps, frames.subList(start, end), masks, failed);
+            start = end;
+        }
+
+        for (int i = 0; i < imps.size(); i++) {
+            if (failed[i]) continue;
+            ImagePlus imp = imps.get(i);
+            ImagePlus cellpose_imp = new ImagePlus(imp.getShortTitle() + "-cellpose", masks[i]);
+            cellpose_imp.setDimensions(1, imp.getNSlices(), imp.getNFrames());
+            cellpose_imp.setCalibration(imp.getCalibration());
+            results.set(i, cellpose_imp);
         }
+        return results;
+    }
+
+    private static long frameBytes(ImagePlus imp) {
+        return (long)imp.getWidth() * imp.getHeight() * imp.getNChannels() * imp.getNSlices() * imp.getBytesPerPixel();
+    }
+
+    /**
+     * Number of concurrent Cellpose processes: one on GPU, otherwise bounded by cores, free memory and frames
+     */
+    static int shardCount(CellposeTaskSettings settings, int nFrames) {
+        if (settings.shards > 0) return Math.min(settings.shards, nFrames);
+        if (settings.useGpu) return 1;
+        int byCores = Math.max(1, Runtime.getRuntime().availableProcessors() / MIN_PROCESS_THREADS);
+        long freeMemory = Runtime.getRuntime().maxMemory();
+        java.lang.management.OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean)
+            freeMemory = ((com.sun.management.OperatingSystemMXBean)os).getFreePhysicalMemorySize();
+        int byMemory = (int)Math.max(1, freeMemory / PROCESS_MEMORY);
+        return Math.max(1, Math.min(nFrames, Math.min(byCores, byMemory)));
+    }
 
-        // Settings are done, we can now process the imp with Cellpose
+    /**
+     * Run the frames of a chunk, split into shards run concurrently
+     */
+    private static void runChunk(CellposeTaskSettings settings, List<ImagePlus> imps, List<int[]> frames, ImageStack[] masks, boolean[] failed) {
+        int nShards = shardCount(settings, frames.size());
+        if (nShards == 1) {
+            runShard(settings, imps, frames, masks, failed);
+            return;
+        }
+        // cores shared by the processes, through OMP/MKL threads
+        int threads = Math.max(1, Runtime.getRuntime().availableProcessors() / nShards);
+        System.out.println("Cellpose: " + frames.size() + " frames in " + nShards + " processes of " + threads + " threads");
+        // shards run concurrently: one worker each, started with the thread budget of the shards
+        if (settings.useWorker)
+            CellposeWorkerPool.get(settings.copy().setNumThreads(threads)).ensureSize(nShards);
+        ExecutorService exe = Executors.newFixedThreadPool(nShards);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int s = 0; s < nShards; s++) {
+                // contiguous shards, results are written at their input positions
+                List<int[]> shard = frames.subList(s * frames.size() / nShards, (s + 1) * frames.size() / nShards);
+                CellposeTaskSettings shardSettings = settings.copy().setNumThreads(threads);
+                futures.add(exe.submit(() -> runShard(shardSettings, imps, shard, masks, failed)));
+            }
+            for (Future<?> f : futures)
+                f.get();
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            exe.shutdown();
+        }
+    }
+
+    /**
+     * Stage frames, run Cellpose once and read their masks
+     */
+    private static void runShard(CellposeTaskSettings settings, List<ImagePlus> imps, List<int[]> frames, ImageStack[] masks, boolean[] failed) {
+        // Create a temp folder for this run, in tmpfs if available
+        // (a new folder per run: concurrent runs don't wipe each other's files)
+        File cellposeTempDir;
+        try {
+            cellposeTempDir = CellposeExchange.createTempDir("cellposeTemp");
+        } catch (IOException e) {
+            e.printStackTrace();
+            markFailed(frames, failed);
+            return;
+        }
+
+        // Add temp folder to the settings
+        settings.setDatasetDir(cellposeTempDir.toString());
+
+        // Settings are done, we can now process the images with Cellpose
         CellposeTask cellposeTask = new CellposeTask();
         cellposeTask.setSettings(settings);
-        
-        try {
-            // Can't process time-lapse directly, so we'll save one time-point after another
-            int impFrames = imp.getNFrames();
 
-            // We'll use lists to store paths of saved input, output masks and outlines
-            List<File> t_imp_paths = new ArrayList<>();
+        try {
+            // Paths of the output masks of each frame
             List<File> cellpose_masks_paths = new ArrayList<>();
-            List<File> cellpose_outlines_paths = new ArrayList<>();
-
-            for (int t_idx = 1; t_idx <= impFrames; t_idx++) {
-                // Duplicate all channels and all z-slices for a defined time-point
-                ImagePlus t_imp = new Duplicator().run(imp, 1, imp.getNChannels(), 1, imp.getNSlices(), t_idx, t_idx);
-                // Save the current t_imp into the cellposeTempDir
-                File t_imp_path = new File(cellposeTempDir, imp.getShortTitle() + "-t" + t_idx + ".tif");
-                FileSaver fs = new FileSaver(t_imp);
-                fs.saveAsTiff(t_imp_path.toString());
-                System.out.println(t_imp_path.toString());
-                // Add to list of paths to delete at the end of operations
-                t_imp_paths.add(t_imp_path);
+            // Frames are exchanged as memory-mapped .npy files with the worker, as tif files with the command line
+            boolean[] npy = new boolean[frames.size()];
 
+            for (int k = 0; k < frames.size(); k++) {
+                int i = frames.get(k)[0], t_idx = frames.get(k)[1];
+                ImagePlus imp = imps.get(i);
+                npy[k] = settings.useWorker && CellposeExchange.isSupported(imp);
+                // image index in the name: masks are mapped back to their image whatever the titles
+                String name = "img" + i + "-t" + t_idx;
+                if (npy[k]) {
+                    // Written straight from the pixel arrays of imp
+                    CellposeExchange.writeFrame(new File(cellposeTempDir, name + ".npy"), imp, t_idx);
+                } else {
+                    // Duplicate all channels and all z-slices for a defined time-point
+                    ImagePlus t_imp = new Duplicator().run(imp, 1, imp.getNChannels(), 1, imp.getNSlices(), t_idx, t_idx);
+                    File t_imp_path = new File(cellposeTempDir, name + ".tif");
+                    new FileSaver(t_imp).saveAsTiff(t_imp_path.toString());
+                    System.out.println(t_imp_path.toString());
+                }
                 // Prepare path of the cellpose mask output
-                File cellpose_imp_path = new File(cellposeTempDir, imp.getShortTitle() + "-t" + t_idx + "_cp_masks" + ".tif");
-                cellpose_masks_paths.add(cellpose_imp_path);
-                // Cellpose also creates a txt file (probably to be used with a script to import ROI in imagej), so we'll delete it too
-                // (to generate ROIs from the label image we can use https://github.com/BIOP/ijp-larome)
-                File cellpose_outlines_path = new File(cellposeTempDir, imp.getShortTitle() + "-t" + t_idx + "_cp_outlines" + ".txt");
-                cellpose_outlines_paths.add(cellpose_outlines_path);
+                cellpose_masks_paths.add(new File(cellposeTempDir, name + "_cp_masks" + (npy[k] ? ".npy" : ".tif")));
             }
 
-            // Run CellPose
+            // Run CellPose once for the shard
             cellposeTask.run();
 
-            // Open all the cellpose_mask and store each imp within an ArrayList
-            ArrayList<ImagePlus> imps = new ArrayList<>(impFrames);
-            for (int t_idx = 1; t_idx <= impFrames; t_idx++) {
-                ImagePlus cellpose_t_imp = IJ.openImage(cellpose_masks_paths.get(t_idx - 1).toString());
-                // make sure to make a 16-bit imp
-                // (issue with time-lapse, first frame have less than 254 objects and latest have more)
-                if (cellpose_t_imp.getBitDepth() != 16) {
-                    if (cellpose_t_imp.getNSlices() > 1) {
-                        new ImageConverter(cellpose_t_imp).convertToGray16();
-                    } else {
-                        cellpose_t_imp.setProcessor(cellpose_t_imp.getProcessor().convertToShort(false));
+            for (int k = 0; k < frames.size(); k++) {
+                int i = frames.get(k)[0], t_idx = frames.get(k)[1];
+                try {
+                    readMasks(imps.get(i), t_idx, cellpose_masks_paths.get(k), npy[k], masks, i);
+                } catch (IOException e) {
+                    System.out.println(e.getMessage());
+                    synchronized (failed) {
+                        failed[i] = true;
                     }
                 }
-                imps.add(cellpose_t_imp.duplicate());
             }
-            // Convert the ArrayList to an imp
-            // https://stackoverflow.com/questions/9572795/convert-list-to-array-in-java
-            ImagePlus[] impsArray = imps.toArray(new ImagePlus[0]);
-            cellpose_imp = Concatenator.run(impsArray);
-            cellpose_imp.setCalibration(cal);
-            cellpose_imp.setTitle(imp.getShortTitle() + "-cellpose");
 
-            // Delete the created files and folder
-            for (int t_idx = 1; t_idx <= impFrames; t_idx++) {
-                t_imp_paths.get(t_idx - 1).delete();
-                cellpose_masks_paths.get(t_idx - 1).delete();
-                cellpose_outlines_paths.get(t_idx - 1).delete();
-            }
-            cellposeTempDir.delete();
-       
         } catch (Exception e) {
             e.printStackTrace();
+            markFailed(frames, failed);
+        } finally {
+            // Delete the created files and folder
+            CellposeExchange.deleteDir(cellposeTempDir);
         }
-        return cellpose_imp;
     }
-}
\ No newline at end of file
+
+    private static void markFailed(List<int[]> frames, boolean[] failed) {
+        synchronized (failed) {
+            for (int[] f : frames)
+                failed[f[0]] = true;
+        }
+    }
+
+    /**
+     * Masks of frame t_idx of image i read into the planes of its preallocated stack,
+     * 16-bit unless labels don't fit (stack converted to 32-bit then).
+     * Frames of an image may be read by several shards: the image is locked from the depth check
+     * to the last plane written, so a stack is never replaced while another shard fills it.
+     */
+    private static void readMasks(ImagePlus imp, int t_idx, File f, boolean npy, ImageStack[] masks, int i) throws IOException {
+        if (!f.exists())
+            throw new IOException("Cellpose masks not found: " + f.getName());
+        int impSlices = imp.getNSlices();
+        int firstSlice = (t_idx - 1) * impSlices + 1;
+        if (npy) {
+            boolean wide = CellposeExchange.readHeader(f).isWide();
+            synchronized (imp) {
+                if (wide && masks[i].getBitDepth() == 16)
+                    masks[i] = toFloat(masks[i]);
+                CellposeExchange.readMasks(f, masks[i], firstSlice);
+            }
+        } else {
+            ImagePlus cellpose_t_imp = IJ.openImage(f.toString());
+            if (cellpose_t_imp == null)
+                throw new IOException("Cellpose masks can't be opened: " + f.getName());
+            boolean wide = cellpose_t_imp.getBitDepth() == 32 && maxLabel(cellpose_t_imp.getStack()) > 65535;
+            synchronized (imp) {
+                // make sure to make 16-bit planes, or 32-bit if this or another frame has labels above 65535
+                // (issue with time-lapse, first frame have less than 254 objects and latest have more)
+                if (wide && masks[i].getBitDepth() == 16)
+                    masks[i] = toFloat(masks[i]);
+                wide = masks[i].getBitDepth() == 32;
+                for (int z = 1; z <= Math.min(impSlices, cellpose_t_imp.getStackSize()); z++) {
+                    ImageProcessor ip = cellpose_t_imp.getStack().getProcessor(z);
+                    masks[i].setPixels((wide ? ip.convertToFloat() : ip.convertToShort(false)).getPixels(), firstSlice + z - 1);
+                }
+            }
+        }
+    }
+
+    /**
+     * Largest label of 32-bit masks (uint32 tif files are opened as 32-bit)
+     */
+    private static float maxLabel(ImageStack stack) {
+        float max = 0;
+        for (int z = 1; z <= stack.getSize(); z++)
+            for (float v : (float[])stack.getPixels(z))
+                max = Math.max(max, v);
+        return max;
+    }
+
+    private static ImageStack toFloat(ImageStack stack) {
+        ImageStack res = new ImageStack(stack.getWidth(), stack.getHeight());
+        for (int z = 1; z <= stack.getSize(); z++) {
+            ImageProcessor ip = stack.getProcessor(z);
+            res.addSlice(ip.convertToFloat());
+        }
+        return res;
+    }
+}
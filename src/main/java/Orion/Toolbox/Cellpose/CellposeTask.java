@@ -1,6 +1,9 @@
 package Orion.Toolbox.Cellpose;
 
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 public class CellposeTask {
     
@@ -11,6 +14,10 @@ public class CellposeTask {
     }
 
     public void run() throws Exception {
+        if (settings.useWorker) {
+            runWorker();
+            return;
+        }
         ArrayList<String> options = new ArrayList<>();
 
         options.add("--dir");
@@ -80,4 +87,16 @@ public class CellposeTask {
         
         Cellpose.execute(options, settings, null);
     }
+    
+    /**
+     * Segment the images (.tif or .npy) of datasetDir with a persistent worker, masks are saved next to them as name_cp_masks
+     */
+    private void runWorker() throws Exception {
+        if (settings.stitch_threshold > -1)
+            settings.use3D(false); // has to be 2D!
+        File[] files = new File(settings.datasetDir).listFiles((dir, name) -> (name.endsWith(".tif") || name.endsWith(".npy")) && !name.contains("_cp_masks.") && !name.contains("_cp_flows."));
+        List<File> images = (files == null) ? new ArrayList<>() : Arrays.asList(files);
+        if (images.isEmpty()) return;
+        CellposeWorkerPool.get(settings).eval(images, settings);
+    }
 }
@@ -25,6 +25,10 @@ public class CellposeTaskSettings {
     boolean invert = false;
     boolean cluster = false;
     boolean verbose = false;
+    boolean useWorker = false; // persistent python worker instead of one cellpose run per call
+    int numThreads = 0; // OMP/MKL threads of the python process (0 = library default)
+    int shards = 1; // concurrent Cellpose processes on CPU (0 = from cores and memory)
+    boolean keepFlows = false; // worker saves the flows and cell probability of 2D images as name_cp_flows.npy
     
     
     public CellposeTaskSettings(String model, int ch1, int diameter, String cellposeEnvDirectory) {
@@ -129,5 +133,53 @@ public class CellposeTaskSettings {
         this.verbose = verbose;
         return this;
     }
+    
+    public CellposeTaskSettings useWorker(boolean useWorker) {
+        this.useWorker = useWorker;
+        return this;
+    }
+
+    public CellposeTaskSettings keepFlows(boolean keepFlows) {
+        this.keepFlows = keepFlows;
+        return this;
+    }
+
+    public CellposeTaskSettings setNumThreads(int numThreads) {
+        this.numThreads = numThreads;
+        return this;
+    }
+
+    public CellposeTaskSettings setShards(int shards) {
+        this.shards = shards;
+        return this;
+    }
+
+    /**
+     * Copy of the settings, for a run with its own dataset directory
+     * @return
+     */
+    public CellposeTaskSettings copy() {
+        CellposeTaskSettings s = new CellposeTaskSettings(model, ch1, diameter, cellposeEnvDirectory);
+        s.datasetDir = datasetDir;
+        s.ch2 = ch2;
+        s.flow_threshold = flow_threshold;
+        s.cellprob_threshold = cellprob_threshold;
+        s.stitch_threshold = stitch_threshold;
+        s.envType = envType;
+        s.version = version;
+        s.use3D = use3D;
+        s.useGpu = useGpu;
+        s.useFastMode = useFastMode;
+        s.useResample = useResample;
+        s.omni = omni;
+        s.invert = invert;
+        s.cluster = cluster;
+        s.verbose = verbose;
+        s.useWorker = useWorker;
+        s.numThreads = numThreads;
+        s.shards = shards;
+        s.keepFlows = keepFlows;
+        return s;
+    }
        
 }
@@ -0,0 +1,222 @@
+package Orion.Toolbox.Cellpose;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+import Orion.Toolbox.PairCounter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Cellpose on large 2D images, cut into overlapping tiles.
+ *
+ * Tiles are cropped, segmented and stitched in raster order by groups of at most maxChunkBytes
+ * of pixels (one row of tiles if 0), each group segmented as a batch (shards and worker of the
+ * settings apply). Crops and masks of a group are dropped once stitched, so memory holds the
+ * 32-bit label plane of the image and one group of tiles. Tile masks are stitched in raster
+ * order: in the part of a tile already covered by previous tiles, a tile label is merged
+ * with the labels it overlaps with an IoU of at least minIoU, other labels get new values.
+ * Pixels already labelled are kept, so cells cut by the edge of a previous tile are completed
+ * by the next one. The overlap should exceed the cell diameter.
+ * Labels are stored as 32-bit floats, exact up to MAX_LABEL (2^24 labels).
+ */
+public class CellposeTiling {
+
+    // largest label stored exactly in the 32-bit float label plane
+    private static final int MAX_LABEL = 1 << 24;
+
+    private final int width, height, tileSize, overlap;
+    // tile origins along x and y, the last tile ends at the image border
+    private final int[] xs, ys;
+
+    // stitched labels
+    private float[] labels;
+    // merged labels, union-find over label values
+    private int[] parent = new int[1024];
+    private int nLabels = 0;
+
+    private CellposeTiling(int width, int height, int tileSize, int overlap) {
+        this.width = width;
+        this.height = height;
+        this.tileSize = tileSize;
+        this.overlap = overlap;
+        xs = origins(width, tileSize, overlap);
+        ys = origins(height, tileSize, overlap);
+    }
+
+    private static int[] origins(int size, int tileSize, int overlap) {
+        if (size <= tileSize) return new int[]{0};
+        int step = tileSize - overlap;
+        int n = (size - overlap + step - 1) / step;
+        int[] o = new int[n];
+        for (int i = 0; i < n; i++)
+            o[i] = Math.min(i * step, size - tileSize);
+        return o;
+    }
+
+    /**
+     * Segment a 2D image (all channels, one slice and one frame) tile by tile
+     * @param settings
+     * @param imp image
+     * @param tileSize tile width and height
+     * @param overlap overlap between adjacent tiles, in pixels
+     * @param minIoU minimal IoU, in the overlap, to merge labels of adjacent tiles
+     * @param maxChunkBytes maximal size of the tiles cropped and segmented at once (0 = one row of tiles)
+     * @return 32-bit label image, null if a tile failed
+     */
+    public static ImagePlus run(CellposeTaskSettings settings, ImagePlus imp, int tileSize, int overlap, double minIoU, long maxChunkBytes) {
+        if (imp.getNSlices() > 1 || imp.getNFrames() > 1)
+            throw new IllegalArgumentException("Cellpose tiling: 2D images only");
+        if (overlap < 0 || overlap >= tileSize)
+            throw new IllegalArgumentException("Cellpose tiling: overlap must be in [0, tileSize)");
+        CellposeTiling tiling = new CellposeTiling(imp.getWidth(), imp.getHeight(), tileSize, overlap);
+
+        int nTiles = tiling.xs.length * tiling.ys.length;
+        if (settings.verbose) System.out.println("Cellpose: " + nTiles + " tiles of " + tileSize + " pixels");
+        long tileBytes = (long)Math.min(tileSize, tiling.width) * Math.min(tileSize, tiling.height) * imp.getNChannels() * imp.getBytesPerPixel();
+        int groupSize = (maxChunkBytes > 0) ? (int)Math.max(1, Math.min(nTiles, maxChunkBytes / tileBytes)) : tiling.xs.length;
+
+        tiling.labels = new float[tiling.width * tiling.height];
+        // Groups of tiles in raster order: crop, segment, stitch, drop
+        for (int first = 0; first < nTiles; first += groupSize) {
+            int last = Math.min(nTiles, first + groupSize);
+            List<ImagePlus> tiles = new ArrayList<>(last - first);
+            for (int k = first; k < last; k++)
+                tiles.add(tiling.crop(imp, tiling.xs[k % tiling.xs.length], tiling.ys[k / tiling.xs.length]));
+            List<ImagePlus> masks = CellposeSegmentImgPlusAdvanced.runBatch(settings, tiles, 0);
+            tiles.clear();
+            for (int k = first; k < last; k++) {
+                int i = k % tiling.xs.length, j = k / tiling.xs.length;
+                ImagePlus mask = masks.set(k - first, null);
+                if (mask == null) {
+                    IJ.log("Cellpose failed on tile " + tiling.xs[i] + "," + tiling.ys[j]);
+                    return null;
+                }
+                // end of the area covered by the previous row and by the previous tile of this row
+                int coveredY = (j > 0) ? tiling.ys[j-1] + Math.min(tileSize, tiling.height) : 0;
+                int coveredX = (i > 0) ? tiling.xs[i-1] + Math.min(tileSize, tiling.width) : 0;
+                tiling.stitch(mask.getStack().getProcessor(1), tiling.xs[i], tiling.ys[j], coveredX, coveredY, minIoU);
+            }
+        }
+        tiling.relabel();
+
+        ImagePlus res = new ImagePlus(imp.getShortTitle() + "-cellpose", new FloatProcessor(tiling.width, tiling.height, tiling.labels));
+        res.setCalibration(imp.getCalibration());
+        return res;
+    }
+
+    /**
+     * All channels of one tile
+     */
+    private ImagePlus crop(ImagePlus imp, int tx, int ty) {
+        int w = Math.min(tileSize, width), h = Math.min(tileSize, height);
+        ImageStack stack = imp.getStack();
+        ImageStack tile = new ImageStack(w, h);
+        for (int c = 1; c <= imp.getNChannels(); c++) {
+            // getProcessor returns a new processor, the roi doesn't change imp
+            ImageProcessor ip = stack.getProcessor(imp.getStackIndex(c, 1, 1));
+            ip.setRoi(tx, ty, w, h);
+            tile.addSlice(ip.crop());
+        }
+        ImagePlus t = new ImagePlus("tile-" + tx + "-" + ty, tile);
+        t.setDimensions(imp.getNChannels(), 1, 1);
+        return t;
+    }
+
+    /**
+     * Add the labels of one tile
+     * @param mask tile labels
+     * @param tx tile origin
+     * @param ty
+     * @param coveredX pixels of the tile with x < coveredX or y < coveredY are already stitched
+     * @param coveredY
+     * @param minIoU
+     */
+    private void stitch(ImageProcessor mask, int tx, int ty, int coveredX, int coveredY, double minIoU) {
+        final int w = mask.getWidth(), h = mask.getHeight();
+        int maxTile = 0;
+        for (int y = 0; y < h; y++)
+            for (int x = 0; x < w; x++)
+                maxTile = Math.max(maxTile, (int)mask.getf(x, y));
+        // areas in the covered part and intersections with the stitched labels
+        int[] tileAreas = new int[maxTile + 1];
+        int[] stitchedAreas = new int[nLabels + 1];
+        PairCounter inter = new PairCounter();
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                if (x + tx >= coveredX && y + ty >= coveredY) continue;
+                int t = (int)mask.getf(x, y);
+                int s = (int)labels[(y + ty) * width + x + tx];
+                tileAreas[t]++;
+                stitchedAreas[s]++;
+                if (t > 0 && s > 0) inter.increment(t, s);
+            }
+        }
+
+        // tile label -> stitched label (0 = none yet)
+        int[] map = new int[maxTile + 1];
+        for (int e = 0; e < inter.capacity(); e++) {
+            int n = inter.count(e);
+            if (n == 0) continue;
+            int t = (int)(inter.key(e) >>> 32), s = (int)inter.key(e);
+            double iou = (double)n / (tileAreas[t] + stitchedAreas[s] - n);
+            if (iou < minIoU) continue;
+            if (map[t] == 0) map[t] = s;
+            else union(map[t], s); // same cell in the previous row and previous tile
+        }
+
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                int t = (int)mask.getf(x, y);
+                if (t == 0) continue;
+                int idx = (y + ty) * width + x + tx;
+                if (labels[idx] != 0) continue;
+                if (map[t] == 0) map[t] = newLabel();
+                labels[idx] = map[t];
+            }
+        }
+    }
+
+    private int newLabel() {
+        nLabels++;
+        if (nLabels == MAX_LABEL + 1)
+            IJ.log(String.format("WARNING: more than %d Cellpose labels, labels above are not exact in the 32-bit float label image.", MAX_LABEL));
+        if (nLabels >= parent.length) parent = Arrays.copyOf(parent, 2 * parent.length);
+        parent[nLabels] = nLabels;
+        return nLabels;
+    }
+
+    private int find(int n) {
+        while (parent[n] != n) {
+            parent[n] = parent[parent[n]];
+            n = parent[n];
+        }
+        return n;
+    }
+
+    private void union(int a, int b) {
+        int ra = find(a), rb = find(b);
+        if (ra != rb) parent[Math.max(ra, rb)] = Math.min(ra, rb);
+    }
+
+    /**
+     * Merged labels replaced by their root, then numbered consecutively
+     */
+    private void relabel() {
+        int[] value = new int[nLabels + 1];
+        int n = 0;
+        for (int l = 1; l <= nLabels; l++) {
+            int r = find(l);
+            if (r == l) value[l] = ++n;
+        }
+        for (int l = 1; l <= nLabels; l++)
+            value[l] = value[find(l)];
+        for (int i = 0; i < labels.length; i++)
+            labels[i] = value[(int)labels[i]];
+    }
+}
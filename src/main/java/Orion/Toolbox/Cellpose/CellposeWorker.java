@@ -0,0 +1,202 @@
+package Orion.Toolbox.Cellpose;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Long-lived python process running cellpose_worker.py: models are loaded once and kept
+ * between requests, instead of one python launch (interpreter, torch import, model load) per image.
+ * Requests are written on stdin, one reply line per request is read back from stdout.
+ */
+public class CellposeWorker implements AutoCloseable {
+
+    private static final String SCRIPT = "cellpose_worker.py";
+    private static final String PREFIX = "@@cellpose ";
+    private static File scriptFile = null;
+
+    private final CellposeTaskSettings settings;
+    private Process process = null;
+    private BufferedWriter stdin = null;
+    // protocol replies, other output lines are printed
+    private final BlockingQueue<String> replies = new LinkedBlockingQueue<>();
+
+    public CellposeWorker(CellposeTaskSettings settings) {
+        this.settings = settings;
+    }
+
+    /**
+     * Worker script copied out of the jar once
+     */
+    private static synchronized File script() throws IOException {
+        if (scriptFile == null || !scriptFile.exists()) {
+            File f = File.createTempFile("cellpose_worker", ".py");
+            f.deleteOnExit();
+            try (InputStream is = CellposeWorker.class.getClassLoader().getResourceAsStream(SCRIPT)) {
+                if (is == null) throw new IOException(SCRIPT + " not found in resources");
+                Files.copy(is, f.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            scriptFile = f;
+        }
+        return scriptFile;
+    }
+
+    /**
+     * Start the python process if it is not running
+     * @throws IOException
+     */
+    public synchronized void start() throws IOException {
+        if (isAlive()) return;
+        List<String> cmd = Cellpose.command(new ArrayList<>(Arrays.asList("-u", script().getPath())), settings);
+        System.out.println("Starting Cellpose worker: " + cmd.toString().replace(",", ""));
+        ProcessBuilder pb = new ProcessBuilder(cmd).redirectErrorStream(true);
+        Cellpose.limitThreads(pb, settings);
+        Process p = pb.start();
+        replies.clear();
+        Thread t = new Thread("cellpose-worker-" + p.hashCode()) {
+            @Override
+            public void run() {
+                BufferedReader stdOut = new BufferedReader(new InputStreamReader(p.getInputStream(), StandardCharsets.UTF_8));
+                try {
+                    for (String line = stdOut.readLine(); line != null; line = stdOut.readLine()) {
+                        if (line.startsWith(PREFIX)) replies.add(line.substring(PREFIX.length()));
+                        else if (settings.verbose) System.out.println(line);
+                    }
+                } catch (IOException e) {
+                    System.out.println(e.getMessage());
+                }
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+        process = p;
+        stdin = new BufferedWriter(new OutputStreamWriter(p.getOutputStream(), StandardCharsets.UTF_8));
+    }
+
+    public synchronized boolean isAlive() {
+        return process != null && process.isAlive();
+    }
+
+    /**
+     * Health check
+     * @param timeoutMs
+     * @return true if the worker answered in time
+     */
+    public synchronized boolean ping(long timeoutMs) {
+        try {
+            return request("PING", timeoutMs).get(0).equals("pong");
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Segment images, masks are saved next to each image as name_cp_masks.tif
+     * The worker is restarted once if it crashed
+     * @param images tif files
+     * @param settings model and thresholds of this request
+     * @return masks paths
+     * @throws IOException
+     */
+    public synchronized List<String> eval(List<File> images, CellposeTaskSettings settings) throws IOException {
+        StringBuilder req = new StringBuilder("EVAL");
+        param(req, "model", settings.model);
+        param(req, "chan", settings.ch1);
+        param(req, "chan2", settings.ch2);
+        param(req, "diameter", settings.diameter);
+        param(req, "flow_threshold", settings.flow_threshold);
+        param(req, "cellprob_threshold", settings.cellprob_threshold);
+        // same options as the command line of this version (CellposeTask)
+        if (!settings.version.equals("0.6")) {
+            param(req, "stitch_threshold", settings.stitch_threshold);
+            param(req, "omni", settings.omni);
+            param(req, "cluster", settings.cluster);
+        }
+        param(req, "do_3D", settings.use3D);
+        param(req, "gpu", settings.useGpu);
+        param(req, "fast_mode", settings.useFastMode);
+        if (!settings.version.equals("1.0") && !settings.version.equals("2.0"))
+            param(req, "resample", settings.useResample);
+        param(req, "invert", settings.invert);
+        param(req, "flows", settings.keepFlows);
+        for (File f : images)
+            param(req, "file", f.getPath());
+        try {
+            start();
+            return request(req.toString(), 0);
+        } catch (IOException e) {
+            if (isAlive()) throw e;
+            // crashed: restart and retry once
+            System.out.println("Cellpose worker crashed (" + e.getMessage() + "), restarting");
+            start();
+            return request(req.toString(), 0);
+        }
+    }
+
+    private static void param(StringBuilder req, String key, Object value) {
+        req.append('\t').append(key).append('=').append(value);
+    }
+
+    /**
+     * Send one request and wait for its reply
+     * @param timeoutMs 0 = until the reply or the end of the process
+     */
+    private List<String> request(String req, long timeoutMs) throws IOException {
+        if (!isAlive()) throw new IOException("Cellpose worker not running");
+        stdin.write(req);
+        stdin.newLine();
+        stdin.flush();
+        final long deadline = System.currentTimeMillis() + timeoutMs;
+        try {
+            while (true) {
+                String reply = replies.poll(200, TimeUnit.MILLISECONDS);
+                if (reply != null) {
+                    String[] fields = reply.split("\t");
+                    if (!fields[0].equals("OK"))
+                        throw new IOException("Cellpose worker error: " + String.join(" ", Arrays.copyOfRange(fields, 1, fields.length)));
+                    return new ArrayList<>(Arrays.asList(fields).subList(1, fields.length));
+                }
+                if (!process.isAlive())
+                    throw new IOException("Cellpose worker exited with value " + process.exitValue());
+                if (timeoutMs > 0 && System.currentTimeMillis() > deadline) {
+                    // no answer: consider it hung
+                    process.destroyForcibly();
+                    throw new IOException("Cellpose worker did not answer in " + timeoutMs + " ms");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (process == null) return;
+        try {
+            if (process.isAlive()) {
+                stdin.write("QUIT");
+                stdin.newLine();
+                stdin.flush();
+                if (!process.waitFor(5, TimeUnit.SECONDS))
+                    process.destroyForcibly();
+            }
+        } catch (IOException | InterruptedException e) {
+            process.destroyForcibly();
+        }
+        process = null;
+    }
+}
@@ -0,0 +1,129 @@
+package Orion.Toolbox.Cellpose;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Pool of Cellpose workers per environment and thread budget (settings.numThreads), shared by all tasks of the JVM.
+ * Workers are started on demand up to the pool size, checked with a ping before each request
+ * and restarted if they crashed or hang. All workers are closed when the JVM exits.
+ */
+public class CellposeWorkerPool {
+
+    private static final Map<String, CellposeWorkerPool> pools = new HashMap<>();
+    private static int poolSize = 1;
+    private static long pingTimeout = 10000; // ms
+    private static boolean hookAdded = false;
+
+    private final CellposeTaskSettings settings;
+    private int size;
+    private final List<CellposeWorker> workers = new ArrayList<>();
+    private final BlockingQueue<CellposeWorker> idle = new LinkedBlockingQueue<>();
+
+    private CellposeWorkerPool(CellposeTaskSettings settings, int size) {
+        this.settings = settings;
+        this.size = size;
+    }
+
+    /**
+     * Number of workers of each environment (pools already created keep their size, see ensureSize)
+     * @param n
+     */
+    public static synchronized void setPoolSize(int n) {
+        poolSize = Math.max(1, n);
+    }
+
+    /**
+     * Health check timeout of the workers
+     * @param ms
+     */
+    public static synchronized void setPingTimeout(long ms) {
+        pingTimeout = ms;
+    }
+
+    /**
+     * Pool of the environment and thread budget of settings: workers started with other OMP/MKL threads are not reused
+     * @param settings
+     * @return
+     */
+    public static synchronized CellposeWorkerPool get(CellposeTaskSettings settings) {
+        if (!hookAdded) {
+            Runtime.getRuntime().addShutdownHook(new Thread(CellposeWorkerPool::shutdown));
+            hookAdded = true;
+        }
+        String key = settings.envType + ":" + settings.cellposeEnvDirectory + ":" + settings.numThreads;
+        return pools.computeIfAbsent(key, k -> new CellposeWorkerPool(settings, poolSize));
+    }
+
+    /**
+     * Close all workers of all pools
+     */
+    public static synchronized void shutdown() {
+        for (CellposeWorkerPool pool : pools.values()) {
+            synchronized (pool) {
+                for (CellposeWorker w : pool.workers)
+                    w.close();
+                pool.workers.clear();
+                pool.idle.clear();
+            }
+        }
+        pools.clear();
+    }
+
+    /**
+     * Allow at least n workers in this pool, so that n concurrent requests (shards) don't wait for each other
+     * @param n
+     * @return this pool
+     */
+    public synchronized CellposeWorkerPool ensureSize(int n) {
+        size = Math.max(size, n);
+        return this;
+    }
+
+    private CellposeWorker borrow() throws InterruptedException {
+        synchronized (this) {
+            CellposeWorker w = idle.poll();
+            if (w != null) return w;
+            if (workers.size() < size) {
+                w = new CellposeWorker(settings);
+                workers.add(w);
+                return w;
+            }
+        }
+        return idle.take();
+    }
+
+    /**
+     * Segment images with a free worker
+     * @param images tif files
+     * @param settings model and thresholds of this request
+     * @return masks paths
+     * @throws IOException
+     */
+    public List<String> eval(List<File> images, CellposeTaskSettings settings) throws IOException {
+        CellposeWorker w;
+        try {
+            w = borrow();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+        try {
+            w.start();
+            if (!w.ping(pingTimeout)) {
+                System.out.println("Cellpose worker not responding, restarting");
+                w.close();
+                w.start();
+            }
+            return w.eval(images, settings);
+        } finally {
+            idle.add(w);
+        }
+    }
+}
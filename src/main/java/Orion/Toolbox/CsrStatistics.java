@@ -0,0 +1,358 @@
+package Orion.Toolbox;
+
+import ij.gui.Plot;
+import mcib3d.utils.ArrayUtil;
+import Orion.Toolbox.Spatial.CentroidDescriptor;
+import Orion.Toolbox.Spatial.KdFFunction;
+import Orion.Toolbox.Spatial.KdGFunction;
+import Orion.Toolbox.Spatial.RoiVoxels;
+
+import java.awt.*;
+import java.util.Arrays;
+
+/**
+ * Analytical counterpart of SpatialStatistics for the G and F functions: no random populations,
+ * the average CDF is the expected one under complete spatial randomness (binomial process of the
+ * observed number of centers in the region) and the sdi is approximated in milliseconds. There is
+ * no closed form under a hard-core model: with a hard-core distance, use SpatialStatistics.
+ *
+ * Border effects are taken into account with the fraction of the region volume within r of
+ * uniform positions of the region, integrated over spheres sampled in NB_DIRECTIONS directions.
+ * The envelope is binomial at each distance. The sdi is signed like the one of SpatialStatistics,
+ * the probability under the null of a lower signed maximal deviation to the expected CDF (largest
+ * deviation in absolute value, observed minus expected): below 0.5 when the observed CDF is mostly
+ * below the expected one, above 0.5 otherwise. Half of the Kolmogorov distribution lies on each
+ * side, so sdi = (1 + K(t)) / 2 for a positive deviation and (1 - K(t)) / 2 for a negative one.
+ * Envelope and sdi take descriptor values as independent, which they are not exactly, so ROIs near
+ * significance should be checked with SpatialStatistics.
+ *
+ * @author thomasb
+ */
+public class CsrStatistics {
+
+    // x values of the curves
+    private static final int NB_BINS = 100;
+    // positions of the border correction
+    private static final int NB_POSITIONS = 256;
+    // directions of the sphere fractions
+    private static final int NB_DIRECTIONS = 64;
+    // range of the curves, relative to the largest observed value
+    private static final double GRID_MARGIN = 1.5;
+
+    private final CentroidDescriptor descriptor;
+    private final RoiVoxels roi;
+    private final double[] observed;
+    private final boolean gFunction;
+
+    private double sdi = Double.NaN;
+    private double env = 0.05;
+    private Color ColorAVG = Color.red;
+    private Color ColorENV = Color.green;
+    private Color ColorOBS = Color.blue;
+    private Plot plot = null;
+    private long elapsedTime = 0;
+
+    private ArrayUtil obsDesc;
+    private ArrayUtil obsCD;
+    private ArrayUtil xEvals;
+    private ArrayUtil averageCD;
+    private ArrayUtil samplesEnvLow;
+    private ArrayUtil samplesEnvHigh;
+
+    /**
+     * @param descriptor KdGFunction or KdFFunction
+     * @param roi region
+     * @param observed calibrated centroids x0, y0, z0, x1, y1, z1...
+     */
+    public CsrStatistics(CentroidDescriptor descriptor, RoiVoxels roi, double[] observed) {
+        if (!(descriptor instanceof KdGFunction) && !(descriptor instanceof KdFFunction)) {
+            throw new IllegalArgumentException("No analytical CSR expectation for " + descriptor.getName());
+        }
+        this.descriptor = descriptor;
+        this.roi = roi;
+        this.observed = observed;
+        this.gFunction = descriptor instanceof KdGFunction;
+        descriptor.init();
+    }
+
+    private void compute() {
+        long start = System.currentTimeMillis();
+        int n = observed.length / 3;
+        obsDesc = new ArrayUtil(descriptor.compute(observed));
+        obsDesc.sort();
+        int nbDesc = obsDesc.size();
+        obsCD = new ArrayUtil(nbDesc);
+        for (int i = 0; i < nbDesc; i++) {
+            obsCD.putValue(i, (i + 1.0) / nbDesc);
+        }
+
+        // distances up to the observed ones and to the nearly complete expected CDF
+        double volume = roi.volume();
+        double rCsr = Math.cbrt(-Math.log(0.001) * 3 * volume / (4 * Math.PI * Math.max(1, n)));
+        double rMax = Math.max(GRID_MARGIN * obsDesc.getMaximum(), rCsr);
+        double[] radii = new double[NB_BINS];
+        for (int b = 0; b < NB_BINS; b++) {
+            radii[b] = b * rMax / (NB_BINS - 1);
+        }
+
+        // expected CDF, averaged over the positions of the region
+        double[][] fractions = ballFractions(radii, volume);
+        double[] expected = new double[NB_BINS];
+        int exponent = gFunction ? n - 1 : n;
+        for (double[] q : fractions) {
+            for (int b = 0; b < NB_BINS; b++) {
+                expected[b] += 1 - Math.pow(Math.max(0, 1 - q[b]), exponent);
+            }
+        }
+        xEvals = new ArrayUtil(radii);
+        averageCD = new ArrayUtil(NB_BINS);
+        for (int b = 0; b < NB_BINS; b++) {
+            averageCD.putValue(b, expected[b] / fractions.length);
+        }
+
+        // normal envelope, Kolmogorov sdi with the effective number of independent values
+        double[] variance = new double[NB_BINS];
+        double sumEff = 0;
+        int nbEff = 0;
+        for (int b = 0; b < NB_BINS; b++) {
+            double e = averageCD.getValue(b);
+            variance[b] = e * (1 - e) / nbDesc;
+            if (!gFunction) {
+                variance[b] += emptySpaceVariance(radii[b], n, volume);
+            }
+            if (e > 0.05 && e < 0.95) {
+                sumEff += e * (1 - e) / variance[b];
+                nbEff++;
+            }
+        }
+        double nEff = (nbEff > 0) ? sumEff / nbEff : nbDesc;
+        double z = normalQuantile(1 - env / 2);
+        samplesEnvLow = new ArrayUtil(NB_BINS);
+        samplesEnvHigh = new ArrayUtil(NB_BINS);
+        // signed deviation of largest absolute value
+        double dMax = 0;
+        int j = 0;
+        for (int b = 0; b < NB_BINS; b++) {
+            double e = averageCD.getValue(b);
+            double half = z * Math.sqrt(variance[b]);
+            samplesEnvLow.putValue(b, Math.max(0, e - half));
+            samplesEnvHigh.putValue(b, Math.min(1, e + half));
+            while (j < nbDesc && obsDesc.getValue(j) <= radii[b]) {
+                j++;
+            }
+            double d = (double) j / nbDesc - e;
+            if (Math.abs(d) > Math.abs(dMax)) {
+                dMax = d;
+            }
+        }
+        double sqrtN = Math.sqrt(nEff);
+        double k = kolmogorovCdf((sqrtN + 0.12 + 0.11 / sqrtN) * Math.abs(dMax));
+        sdi = (dMax >= 0) ? (1 + k) / 2 : (1 - k) / 2;
+        elapsedTime = System.currentTimeMillis() - start;
+    }
+
+    /**
+     * Fraction of the region volume within each radius of uniform positions of the region,
+     * the sphere of radius r being inside the region in the fraction of the directions found inside
+     * @return fractions[position][radius]
+     */
+    private double[][] ballFractions(double[] radii, double volume) {
+        double[] dirs = new double[3 * NB_DIRECTIONS];
+        double golden = Math.PI * (3 - Math.sqrt(5));
+        for (int d = 0; d < NB_DIRECTIONS; d++) {
+            double dz = 1 - (2 * d + 1.0) / NB_DIRECTIONS;
+            double r = Math.sqrt(1 - dz * dz);
+            dirs[3*d] = r * Math.cos(golden * d);
+            dirs[3*d + 1] = r * Math.sin(golden * d);
+            dirs[3*d + 2] = dz;
+        }
+        // positions spread in the voxel list by the golden ratio (a regular stride would repeat the
+        // same columns of the slices), the approximation is deterministic
+        double[] positions = new double[3 * NB_POSITIONS];
+        double phi = (Math.sqrt(5) - 1) / 2;
+        for (int p = 0; p < NB_POSITIONS; p++) {
+            double u = (p + 0.5) * phi;
+            roi.point((int) ((u - Math.floor(u)) * roi.size()), positions, 3 * p);
+        }
+        double[] lattice = latticeFactors(radii);
+        double[][] fractions = new double[NB_POSITIONS][radii.length];
+        for (int p = 0; p < NB_POSITIONS; p++) {
+            double x = positions[3*p], y = positions[3*p + 1], z = positions[3*p + 2];
+            double cum = 0;
+            for (int b = 1; b < radii.length; b++) {
+                // shell between radii b-1 and b, sphere fraction at its middle
+                double s = 0.5 * (radii[b - 1] + radii[b]);
+                int in = 0;
+                for (int d = 0; d < NB_DIRECTIONS; d++) {
+                    if (roi.contains(x + s * dirs[3*d], y + s * dirs[3*d + 1], z + s * dirs[3*d + 2])) in++;
+                }
+                double shell = 4.0 / 3.0 * Math.PI * (Math.pow(radii[b], 3) - Math.pow(radii[b - 1], 3));
+                cum += shell * in / NB_DIRECTIONS;
+                fractions[p][b] = Math.min(1, cum * lattice[b] / volume);
+            }
+        }
+        return fractions;
+    }
+
+    /**
+     * Random centers are voxel centers: number of voxels within each radius of a voxel relative to
+     * the ball volume (1 when the voxels are small compared to the radii)
+     */
+    private double[] latticeFactors(double[] radii) {
+        double[] factors = new double[radii.length];
+        Arrays.fill(factors, 1);
+        double sxy = roi.getSizeXY(), sz = roi.getSizeZ();
+        double rMax = radii[radii.length - 1];
+        int nz = (int) (rMax / sz), nx = (int) (rMax / sxy);
+        // row counting costs about nbRadii * nz * nx
+        if ((double) radii.length * (2 * nz + 1) * (2 * nx + 1) > 1e7) return factors;
+        for (int b = 1; b < radii.length; b++) {
+            double r2 = radii[b] * radii[b];
+            long count = 0;
+            for (int k = -nz; k <= nz; k++) {
+                for (int i = -nx; i <= nx; i++) {
+                    double rest = r2 - (k * sz) * (k * sz) - (i * sxy) * (i * sxy);
+                    if (rest >= 0) count += 2 * (long) Math.floor(Math.sqrt(rest) / sxy) + 1;
+                }
+            }
+            factors[b] = count * sxy * sxy * sz / (4.0 / 3.0 * Math.PI * r2 * radii[b]);
+        }
+        return factors;
+    }
+
+    /**
+     * Variance of the empty space fraction at distance r of n uniform centers, from the
+     * covariance of two positions at distance u (volume of the union of their balls below 2r,
+     * independent balls above)
+     */
+    private static double emptySpaceVariance(double r, int n, double volume) {
+        if (r <= 0) return 0;
+        double v = 4.0 / 3.0 * Math.PI * r * r * r;
+        double empty2 = Math.pow(Math.max(0, 1 - v / volume), 2 * n);
+        double far = Math.pow(Math.max(0, 1 - 2 * v / volume), n) - empty2;
+        int steps = 50;
+        double du = 2 * r / steps;
+        double sum = 0;
+        for (int i = 0; i < steps; i++) {
+            double u = (i + 0.5) * du;
+            double lens = Math.PI * (4 * r + u) * (2 * r - u) * (2 * r - u) / 12;
+            sum += 4 * Math.PI * u * u * (Math.pow(Math.max(0, 1 - (2 * v - lens) / volume), n) - empty2) * du;
+        }
+        double near = 8 * v;
+        return Math.max(0, (sum + Math.max(0, volume - near) * far) / volume);
+    }
+
+    /**
+     * Kolmogorov distribution, P(sqrt(n) D <= t) for large n
+     */
+    private static double kolmogorovCdf(double t) {
+        if (t <= 0) return 0;
+        double sum = 0;
+        if (t < 1) {
+            for (int k = 1; k <= 10; k++) {
+                sum += Math.exp(-(2 * k - 1) * (2 * k - 1) * Math.PI * Math.PI / (8 * t * t));
+            }
+            return Math.sqrt(2 * Math.PI) / t * sum;
+        }
+        for (int k = 1; k <= 100; k++) {
+            sum += ((k % 2 == 1) ? 1 : -1) * Math.exp(-2.0 * k * k * t * t);
+        }
+        return 1 - 2 * sum;
+    }
+
+    /**
+     * Standard normal quantile (Acklam's rational approximation)
+     */
+    private static double normalQuantile(double p) {
+        double[] a = {-3.969683028665376e+01, 2.209460984245205e+02, -2.759285104469687e+02, 1.383577518672690e+02, -3.066479806614716e+01, 2.506628277459239e+00};
+        double[] b = {-5.447609879822406e+01, 1.615858368580409e+02, -1.556989798598866e+02, 6.680131188771972e+01, -1.328068155288572e+01};
+        double[] c = {-7.784894002430293e-03, -3.223964580411365e-01, -2.400758277161838e+00, -2.549732539343734e+00, 4.374664141464968e+00, 2.938163982698783e+00};
+        double[] d = {7.784695709041462e-03, 3.224671290700398e-01, 2.445134137142996e+00, 3.754408661907416e+00};
+        double pLow = 0.02425;
+        if (p < pLow) {
+            double q = Math.sqrt(-2 * Math.log(p));
+            return (((((c[0]*q + c[1])*q + c[2])*q + c[3])*q + c[4])*q + c[5]) / ((((d[0]*q + d[1])*q + d[2])*q + d[3])*q + 1);
+        }
+        if (p > 1 - pLow) {
+            return -normalQuantile(1 - p);
+        }
+        double q = p - 0.5, r = q * q;
+        return (((((a[0]*r + a[1])*r + a[2])*r + a[3])*r + a[4])*r + a[5])*q / (((((b[0]*r + b[1])*r + b[2])*r + b[3])*r + b[4])*r + 1);
+    }
+
+    private void createPlot() {
+        if (Double.isNaN(sdi)) {
+            compute();
+        }
+        double plotmaxX = Math.max(obsDesc.getMaximum(), xEvals.getMaximum());
+        plot = new Plot(descriptor.getName() + "_CSR", "distance", "cumulated frequency");
+        plot.setLimits(0, plotmaxX, 0, 1);
+
+        // envelope
+        plot.setColor(ColorENV);
+        plot.addPoints(xEvals.getArray(), samplesEnvLow.getArray(), Plot.LINE);
+        plot.setColor(ColorENV);
+        plot.addPoints(xEvals.getArray(), samplesEnvHigh.getArray(), Plot.LINE);
+
+        // expected
+        plot.setColor(ColorAVG);
+        plot.addPoints(xEvals.getArray(), averageCD.getArray(), Plot.LINE);
+
+        // observed
+        plot.setColor(ColorOBS);
+        plot.addPoints(obsDesc.getArray(), obsCD.getArray(), Plot.LINE);
+    }
+
+    public void setColorsPlot(Color avg, Color env, Color obs) {
+        ColorAVG = avg;
+        ColorENV = env;
+        ColorOBS = obs;
+
+        plot = null; // need to redo plot
+    }
+
+    /**
+     * Approximate sdi
+     * @return
+     */
+    public double getSdi() {
+        if (Double.isNaN(sdi)) {
+            compute();
+        }
+        return sdi;
+    }
+
+    public Plot getPlot() {
+        if (plot == null) {
+            createPlot();
+        }
+        return plot;
+    }
+
+    public double getAreaCurve() {
+        if (Double.isNaN(sdi)) {
+            compute();
+        }
+        double sum = 0.0;
+        for(int i = 0; i < obsDesc.size() - 1; i++){
+            sum += (obsDesc.getValue(i + 1) - obsDesc.getValue(i)) * obsCD.getValue(i);
+            sum += (obsDesc.getValue(i + 1)- obsDesc.getValue(i)) * (obsCD.getValue(i + 1) - obsCD.getValue(i)) / 2.0;
+        }
+        return sum;
+    }
+
+    public void setEnvelope(double env) {
+        this.env = env;
+    }
+
+    /**
+     * Time of the sdi computation in ms
+     * @return
+     */
+    public long getElapsedTime() {
+        if (Double.isNaN(sdi)) {
+            compute();
+        }
+        return elapsedTime;
+    }
+}
@@ -0,0 +1,69 @@
+package Orion.Toolbox;
+
+/**
+ * Open addressing counter of (label1, label2) pairs, no boxing in the voxel loop
+ * Used to count label overlaps (LabelAssociation, CellposeTiling)
+ */
+public class PairCounter {
+    private long[] keys = new long[256];
+    private int[] counts = new int[256];
+    private int n = 0;
+
+    public void increment(int k1, int k2) {
+        add(k1, k2, 1);
+    }
+
+    public void add(int k1, int k2, int count) {
+        final long key = ((long)k1 << 32) | (k2 & 0xffffffffL);
+        int mask = keys.length - 1;
+        int h = (int)(key ^ (key >>> 29)) * 0x9E3779B1 & mask;
+        while (counts[h] != 0 && keys[h] != key) h = (h + 1) & mask;
+        if (counts[h] == 0) {
+            keys[h] = key;
+            n++;
+            if (2*n > keys.length) {
+                counts[h] = count;
+                grow();
+                return;
+            }
+        }
+        counts[h] += count;
+    }
+
+    public int size() {
+        return n;
+    }
+
+    /**
+     * Number of slots, pairs are the slots with a non-zero count
+     */
+    public int capacity() {
+        return keys.length;
+    }
+
+    /**
+     * Pair of slot e, packed as (k1 << 32) | k2
+     */
+    public long key(int e) {
+        return keys[e];
+    }
+
+    public int count(int e) {
+        return counts[e];
+    }
+
+    private void grow() {
+        final long[] oldKeys = keys;
+        final int[] oldCounts = counts;
+        keys = new long[2*oldKeys.length];
+        counts = new int[2*oldKeys.length];
+        final int mask = keys.length - 1;
+        for (int e = 0; e < oldKeys.length; e++) {
+            if (oldCounts[e] == 0) continue;
+            int h = (int)(oldKeys[e] ^ (oldKeys[e] >>> 29)) * 0x9E3779B1 & mask;
+            while (counts[h] != 0) h = (h + 1) & mask;
+            keys[h] = oldKeys[e];
+            counts[h] = oldCounts[e];
+        }
+    }
+}
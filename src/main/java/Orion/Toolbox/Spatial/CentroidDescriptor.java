@@ -0,0 +1,16 @@
+package Orion.Toolbox.Spatial;
+
+import mcib3d.spatial.descriptors.SpatialDescriptor;
+
+/**
+ * Spatial descriptor computed from calibrated centroids only.
+ */
+public interface CentroidDescriptor extends SpatialDescriptor {
+
+    /**
+     * Descriptor values of a population
+     * @param centroids x0, y0, z0, x1, y1, z1...
+     * @return
+     */
+    double[] compute(double[] centroids);
+}
@@ -0,0 +1,20 @@
+package Orion.Toolbox.Spatial;
+
+import java.util.SplittableRandom;
+
+/**
+ * Spatial model drawing random populations as calibrated centroids.
+ */
+public interface CentroidModel {
+
+    boolean init();
+
+    /**
+     * Random population
+     * @param random generator of this sample only
+     * @return centroids x0, y0, z0, x1, y1, z1...
+     */
+    double[] getSample(SplittableRandom random);
+
+    String getName();
+}
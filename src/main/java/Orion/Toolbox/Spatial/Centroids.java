@@ -0,0 +1,61 @@
+package Orion.Toolbox.Spatial;
+
+import mcib3d.geom.Object3D;
+import mcib3d.geom.Objects3DPopulation;
+import mcib3d.geom2.Object3DInt;
+import mcib3d.geom2.Object3DPlane;
+import mcib3d.geom2.Objects3DIntPopulation;
+import mcib3d.geom2.VoxelInt;
+
+/**
+ * Calibrated centroids of populations, as x0, y0, z0, x1, y1, z1... arrays for the spatial descriptors.
+ */
+public class Centroids {
+
+    /**
+     * Calibrated centers of the objects of a population
+     * @param pop
+     * @return
+     */
+    public static double[] of(Objects3DPopulation pop) {
+        int n = pop.getNbObjects();
+        double[] xyz = new double[3 * n];
+        for (int i = 0; i < n; i++) {
+            Object3D obj = pop.getObject(i);
+            xyz[3*i] = obj.getCenterX() * obj.getResXY();
+            xyz[3*i + 1] = obj.getCenterY() * obj.getResXY();
+            xyz[3*i + 2] = obj.getCenterZ() * obj.getResZ();
+        }
+        return xyz;
+    }
+
+    /**
+     * Calibrated centroids of the objects of a population, read from their voxels (no image drawn)
+     * @param pop
+     * @param sizeXY voxel size in x and y
+     * @param sizeZ voxel size in z
+     * @return
+     */
+    public static double[] of(Objects3DIntPopulation pop, double sizeXY, double sizeZ) {
+        int n = pop.getNbObjects();
+        double[] xyz = new double[3 * n];
+        int i = 0;
+        for (Object3DInt obj : pop.getObjects3DInt()) {
+            double sx = 0, sy = 0, sz = 0;
+            long count = 0;
+            for (Object3DPlane plane : obj.getObject3DPlanes()) {
+                for (VoxelInt v : plane.getVoxels()) {
+                    sx += v.getX();
+                    sy += v.getY();
+                    sz += v.getZ();
+                    count++;
+                }
+            }
+            xyz[3*i] = sx / count * sizeXY;
+            xyz[3*i + 1] = sy / count * sizeXY;
+            xyz[3*i + 2] = sz / count * sizeZ;
+            i++;
+        }
+        return xyz;
+    }
+}
@@ -0,0 +1,14 @@
+package Orion.Toolbox.Spatial;
+
+/**
+ * Centroid descriptor giving a curve: compute returns one value per radius of getRadii, in
+ * order, instead of a distribution of values. Envelope and sdi are taken on the curves.
+ */
+public interface CurveDescriptor extends CentroidDescriptor {
+
+    /**
+     * Increasing radii of the curve values (calibrated)
+     * @return
+     */
+    double[] getRadii();
+}
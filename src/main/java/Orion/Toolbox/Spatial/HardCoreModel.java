@@ -0,0 +1,121 @@
+package Orion.Toolbox.Spatial;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/**
+ * Random populations in a region with a hard-core distance: centers are drawn uniformly
+ * among the voxels of the region and rejected if closer than the hard-core distance to an
+ * accepted center.
+ *
+ * Accepted centers are bucketed in a uniform grid of cells at least as large as the hard-core
+ * distance, so a draw is only checked against the centers of its 27 neighbouring cells. Grid
+ * buffers are allocated once per thread and cleared cell by cell between samples.
+ */
+public class HardCoreModel implements CentroidModel {
+
+    // draws per point before giving up
+    private static final int MAX_TRIES = 1000;
+    // grid size limit, cells grow beyond the hard-core distance above it
+    private static final int MAX_CELLS = 1 << 22;
+
+    private final int nbPoints;
+    private final double distHardCore;
+    private final RoiVoxels roi;
+    // grid origin, cell size and dimensions
+    private final double ox, oy, oz, cell;
+    private final int nx, ny, nz;
+    private final ThreadLocal<Grid> grids = ThreadLocal.withInitial(Grid::new);
+
+    /**
+     * @param nbPoints number of centers
+     * @param distHardCore minimal distance between centers (calibrated)
+     * @param roi region
+     */
+    public HardCoreModel(int nbPoints, double distHardCore, RoiVoxels roi) {
+        this.nbPoints = nbPoints;
+        this.distHardCore = distHardCore;
+        this.roi = roi;
+        double[] b = roi.bounds();
+        ox = b[0];
+        oy = b[1];
+        oz = b[2];
+        double ex = b[3] - b[0], ey = b[4] - b[1], ez = b[5] - b[2];
+        double c = Math.max(distHardCore, Double.MIN_NORMAL);
+        double cells = (ex / c + 1) * (ey / c + 1) * (ez / c + 1);
+        if (cells > MAX_CELLS) c *= Math.cbrt(cells / MAX_CELLS) * 1.01;
+        cell = c;
+        nx = (int) (ex / cell) + 1;
+        ny = (int) (ey / cell) + 1;
+        nz = (int) (ez / cell) + 1;
+    }
+
+    @Override
+    public boolean init() {
+        return roi.size() > 0;
+    }
+
+    /**
+     * Centers of each grid cell as linked lists, with the list of non-empty cells to clear
+     */
+    private class Grid {
+        final int[] head = new int[nx * ny * nz];
+        final int[] next = new int[nbPoints];
+        final int[] used = new int[nbPoints];
+        int nbUsed = 0;
+
+        Grid() {
+            Arrays.fill(head, -1);
+        }
+
+        void clear() {
+            for (int i = 0; i < nbUsed; i++) head[used[i]] = -1;
+            nbUsed = 0;
+        }
+    }
+
+    private int cellCoord(double v, double origin, int max) {
+        return Math.min(max - 1, Math.max(0, (int) ((v - origin) / cell)));
+    }
+
+    @Override
+    public double[] getSample(SplittableRandom random) {
+        if (distHardCore <= 0) return roi.randomPoints(nbPoints, random);
+        double[] xyz = new double[3 * nbPoints];
+        double d2 = distHardCore * distHardCore;
+        Grid grid = grids.get();
+        grid.clear();
+        long tries = 0;
+        int n = 0;
+        while (n < nbPoints) {
+            if (++tries > (long) MAX_TRIES * nbPoints)
+                throw new IllegalStateException("Cannot place " + nbPoints + " points with hard-core distance " + distHardCore);
+            roi.point(random.nextInt(roi.size()), xyz, 3 * n);
+            double x = xyz[3*n], y = xyz[3*n + 1], z = xyz[3*n + 2];
+            int cx = cellCoord(x, ox, nx), cy = cellCoord(y, oy, ny), cz = cellCoord(z, oz, nz);
+            if (conflicts(grid, xyz, x, y, z, cx, cy, cz, d2)) continue;
+            int c = (cz * ny + cy) * nx + cx;
+            if (grid.head[c] < 0) grid.used[grid.nbUsed++] = c;
+            grid.next[n] = grid.head[c];
+            grid.head[c] = n;
+            n++;
+        }
+        return xyz;
+    }
+
+    private boolean conflicts(Grid grid, double[] xyz, double x, double y, double z, int cx, int cy, int cz, double d2) {
+        for (int k = Math.max(0, cz - 1); k <= Math.min(nz - 1, cz + 1); k++)
+            for (int j = Math.max(0, cy - 1); j <= Math.min(ny - 1, cy + 1); j++)
+                for (int i = Math.max(0, cx - 1); i <= Math.min(nx - 1, cx + 1); i++)
+                    for (int p = grid.head[(k * ny + j) * nx + i]; p >= 0; p = grid.next[p]) {
+                        double dx = x - xyz[3*p], dy = y - xyz[3*p + 1], dz = z - xyz[3*p + 2];
+                        if (dx*dx + dy*dy + dz*dz < d2) return true;
+                    }
+        return false;
+    }
+
+    @Override
+    public String getName() {
+        return "Random hard-core";
+    }
+}
@@ -0,0 +1,240 @@
+package Orion.Toolbox.Spatial;
+
+import java.util.Arrays;
+import java.util.function.DoubleUnaryOperator;
+import java.util.stream.IntStream;
+
+/**
+ * KD-tree of 3D points in primitive arrays, for nearest neighbour queries.
+ *
+ * Points are reordered so that each range [lo, hi) has its splitting point at (lo + hi) / 2, split
+ * along the axis of largest spread: no node objects, one build in O(n log n) and queries in
+ * O(log n) on average. Batch queries run in parallel.
+ */
+public class KDTree3D {
+
+    // coordinates x, y, z of the point at each tree position
+    private final double[] xyz;
+    // original index of the point at each tree position
+    private final int[] index;
+    // split axis of the node at each tree position
+    private final byte[] axis;
+    private final int n;
+
+    /**
+     * @param points coordinates x0, y0, z0, x1, y1, z1... (not modified)
+     */
+    public KDTree3D(double[] points) {
+        n = points.length / 3;
+        xyz = points.clone();
+        index = new int[n];
+        for (int i = 0; i < n; i++) index[i] = i;
+        axis = new byte[n];
+        build(0, n);
+    }
+
+    public int size() {
+        return n;
+    }
+
+    private void build(int lo, int hi) {
+        if (hi - lo <= 1) return;
+        // axis of largest spread
+        double[] min = {Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE};
+        double[] max = {-Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE};
+        for (int i = lo; i < hi; i++)
+            for (int d = 0; d < 3; d++) {
+                min[d] = Math.min(min[d], xyz[3*i + d]);
+                max[d] = Math.max(max[d], xyz[3*i + d]);
+            }
+        int a = 0;
+        for (int d = 1; d < 3; d++)
+            if (max[d] - min[d] > max[a] - min[a]) a = d;
+        int mid = (lo + hi) >>> 1;
+        select(lo, hi - 1, mid, a);
+        axis[mid] = (byte) a;
+        build(lo, mid);
+        build(mid + 1, hi);
+    }
+
+    /**
+     * Quickselect: k-th point of [lo, hi] along axis a at position k
+     */
+    private void select(int lo, int hi, int k, int a) {
+        while (hi > lo) {
+            double pivot = xyz[3*((lo + hi) >>> 1) + a];
+            int i = lo, j = hi;
+            while (i <= j) {
+                while (xyz[3*i + a] < pivot) i++;
+                while (xyz[3*j + a] > pivot) j--;
+                if (i <= j) {
+                    swap(i, j);
+                    i++;
+                    j--;
+                }
+            }
+            if (k <= j) hi = j;
+            else if (k >= i) lo = i;
+            else return;
+        }
+    }
+
+    private void swap(int i, int j) {
+        for (int d = 0; d < 3; d++) {
+            double t = xyz[3*i + d];
+            xyz[3*i + d] = xyz[3*j + d];
+            xyz[3*j + d] = t;
+        }
+        int t = index[i];
+        index[i] = index[j];
+        index[j] = t;
+    }
+
+    /**
+     * Distance to the nearest point
+     * @param x
+     * @param y
+     * @param z
+     * @param exclude original index of a point to ignore (the query point itself), -1 for none
+     * @return distance, infinity if no point
+     */
+    public double nearestDistance(double x, double y, double z, int exclude) {
+        double[] best = {Double.POSITIVE_INFINITY};
+        nearest(0, n, x, y, z, exclude, best);
+        return Math.sqrt(best[0]);
+    }
+
+    private void nearest(int lo, int hi, double x, double y, double z, int exclude, double[] best) {
+        if (hi <= lo) return;
+        int mid = (lo + hi) >>> 1;
+        double dx = xyz[3*mid] - x, dy = xyz[3*mid + 1] - y, dz = xyz[3*mid + 2] - z;
+        if (index[mid] != exclude) {
+            double d2 = dx*dx + dy*dy + dz*dz;
+            if (d2 < best[0]) best[0] = d2;
+        }
+        if (hi - lo == 1) return;
+        int a = axis[mid];
+        double diff = (a == 0) ? -dx : (a == 1) ? -dy : -dz;
+        // query side first, other side only if the splitting plane is closer than the best point
+        if (diff < 0) {
+            nearest(lo, mid, x, y, z, exclude, best);
+            if (diff * diff < best[0]) nearest(mid + 1, hi, x, y, z, exclude, best);
+        } else {
+            nearest(mid + 1, hi, x, y, z, exclude, best);
+            if (diff * diff < best[0]) nearest(lo, mid, x, y, z, exclude, best);
+        }
+    }
+
+    /**
+     * Number of points within radius r (included)
+     * @param x
+     * @param y
+     * @param z
+     * @param r
+     * @param exclude original index of a point to ignore, -1 for none
+     * @return
+     */
+    public int countWithin(double x, double y, double z, double r, int exclude) {
+        return count(0, n, x, y, z, r * r, exclude);
+    }
+
+    private int count(int lo, int hi, double x, double y, double z, double r2, int exclude) {
+        if (hi <= lo) return 0;
+        int mid = (lo + hi) >>> 1;
+        double dx = xyz[3*mid] - x, dy = xyz[3*mid + 1] - y, dz = xyz[3*mid + 2] - z;
+        int c = (index[mid] != exclude && dx*dx + dy*dy + dz*dz <= r2) ? 1 : 0;
+        if (hi - lo == 1) return c;
+        int a = axis[mid];
+        double diff = (a == 0) ? -dx : (a == 1) ? -dy : -dz;
+        if (diff < 0 || diff * diff <= r2) c += count(lo, mid, x, y, z, r2, exclude);
+        if (diff >= 0 || diff * diff <= r2) c += count(mid + 1, hi, x, y, z, r2, exclude);
+        return c;
+    }
+
+    /**
+     * Histogram of the distances to the points within the largest radius, in one range query:
+     * hist[k] is incremented for each point at a distance in (radii[k-1], radii[k]]
+     * @param x
+     * @param y
+     * @param z
+     * @param radii increasing radii
+     * @param exclude original index of a point to ignore, -1 for none
+     * @param hist receives the counts, same length as radii
+     */
+    public void histogramWithin(double x, double y, double z, double[] radii, int exclude, int[] hist) {
+        double rMax = radii[radii.length - 1];
+        histogram(0, n, x, y, z, rMax * rMax, radii, exclude, hist);
+    }
+
+    private void histogram(int lo, int hi, double x, double y, double z, double r2, double[] radii, int exclude, int[] hist) {
+        if (hi <= lo) return;
+        int mid = (lo + hi) >>> 1;
+        double dx = xyz[3*mid] - x, dy = xyz[3*mid + 1] - y, dz = xyz[3*mid + 2] - z;
+        double d2 = dx*dx + dy*dy + dz*dz;
+        if (index[mid] != exclude && d2 <= r2) {
+            int k = Arrays.binarySearch(radii, Math.sqrt(d2));
+            hist[k < 0 ? -k - 1 : k]++;
+        }
+        if (hi - lo == 1) return;
+        int a = axis[mid];
+        double diff = (a == 0) ? -dx : (a == 1) ? -dy : -dz;
+        if (diff < 0 || diff * diff <= r2) histogram(lo, mid, x, y, z, r2, radii, exclude, hist);
+        if (diff >= 0 || diff * diff <= r2) histogram(mid + 1, hi, x, y, z, r2, radii, exclude, hist);
+    }
+
+    /**
+     * Weighted histogram of the distances to the points within the largest radius, in one range
+     * query: weight(d) is added to hist[k] for each point at a distance d in (radii[k-1], radii[k]]
+     * @param x
+     * @param y
+     * @param z
+     * @param radii increasing radii
+     * @param exclude original index of a point to ignore, -1 for none
+     * @param weight weight of a point at distance d
+     * @param hist receives the weights, same length as radii
+     */
+    public void histogramWithin(double x, double y, double z, double[] radii, int exclude, DoubleUnaryOperator weight, double[] hist) {
+        double rMax = radii[radii.length - 1];
+        histogram(0, n, x, y, z, rMax * rMax, radii, exclude, weight, hist);
+    }
+
+    private void histogram(int lo, int hi, double x, double y, double z, double r2, double[] radii, int exclude, DoubleUnaryOperator weight, double[] hist) {
+        if (hi <= lo) return;
+        int mid = (lo + hi) >>> 1;
+        double dx = xyz[3*mid] - x, dy = xyz[3*mid + 1] - y, dz = xyz[3*mid + 2] - z;
+        double d2 = dx*dx + dy*dy + dz*dz;
+        if (index[mid] != exclude && d2 <= r2) {
+            double d = Math.sqrt(d2);
+            int k = Arrays.binarySearch(radii, d);
+            hist[k < 0 ? -k - 1 : k] += weight.applyAsDouble(d);
+        }
+        if (hi - lo == 1) return;
+        int a = axis[mid];
+        double diff = (a == 0) ? -dx : (a == 1) ? -dy : -dz;
+        if (diff < 0 || diff * diff <= r2) histogram(lo, mid, x, y, z, r2, radii, exclude, weight, hist);
+        if (diff >= 0 || diff * diff <= r2) histogram(mid + 1, hi, x, y, z, r2, radii, exclude, weight, hist);
+    }
+
+    /**
+     * Distance of each point of the tree to its nearest other point, in original order
+     * @return
+     */
+    public double[] nearestNeighbourDistances() {
+        double[] res = new double[n];
+        IntStream.range(0, n).parallel().forEach(p ->
+                res[index[p]] = nearestDistance(xyz[3*p], xyz[3*p + 1], xyz[3*p + 2], index[p]));
+        return res;
+    }
+
+    /**
+     * Distance of each query point to its nearest point of the tree
+     * @param queries coordinates x0, y0, z0, x1, y1, z1...
+     * @return
+     */
+    public double[] nearestDistances(double[] queries) {
+        double[] res = new double[queries.length / 3];
+        IntStream.range(0, res.length).parallel().forEach(q ->
+                res[q] = nearestDistance(queries[3*q], queries[3*q + 1], queries[3*q + 2], -1));
+        return res;
+    }
+}
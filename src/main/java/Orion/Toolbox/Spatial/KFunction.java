@@ -0,0 +1,27 @@
+package Orion.Toolbox.Spatial;
+
+/**
+ * Ripley K-function descriptor, 4/3 pi r^3 under complete spatial randomness.
+ */
+public class KFunction extends RipleyFunction {
+
+    /**
+     * @param roi region of the centers
+     * @param rMax largest radius (calibrated)
+     * @param nbRadii number of radii
+     * @param correction edge correction
+     */
+    public KFunction(RoiVoxels roi, double rMax, int nbRadii, EdgeCorrection correction) {
+        super(roi, rMax, nbRadii, correction);
+    }
+
+    @Override
+    public double[] compute(double[] centroids) {
+        return kFunction(centroids);
+    }
+
+    @Override
+    public String getName() {
+        return "K-function";
+    }
+}
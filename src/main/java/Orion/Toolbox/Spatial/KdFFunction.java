@@ -0,0 +1,107 @@
+package Orion.Toolbox.Spatial;
+
+import mcib3d.geom.Object3D;
+import mcib3d.geom.Objects3DPopulation;
+import mcib3d.geom.Voxel3D;
+import mcib3d.utils.ArrayUtil;
+
+import java.util.SplittableRandom;
+
+/**
+ * F-function descriptor: distance of random evaluation points of the mask to the nearest object
+ * (calibrated centers), with a KD-tree built once per population. Evaluation points are drawn
+ * once, at init.
+ */
+public class KdFFunction implements CentroidDescriptor {
+
+    private final int nbEval;
+    private final Object3D mask;
+    private final long seed;
+    // calibrated evaluation points x0, y0, z0...
+    private double[] evalPoints = null;
+    // trees shared with other descriptors (null for none)
+    private SharedSamples shared = null;
+
+    /**
+     * @param nbEval number of evaluation points
+     * @param mask region of the evaluation points
+     */
+    public KdFFunction(int nbEval, Object3D mask) {
+        this(nbEval, mask, new SplittableRandom().nextLong());
+    }
+
+    /**
+     * @param nbEval number of evaluation points
+     * @param mask region of the evaluation points
+     * @param seed seed of the evaluation points
+     */
+    public KdFFunction(int nbEval, Object3D mask, long seed) {
+        this.nbEval = nbEval;
+        this.mask = mask;
+        this.seed = seed;
+    }
+
+    /**
+     * Evaluation points given directly (calibrated coordinates), no mask needed
+     * @param evalPoints x0, y0, z0, x1, y1, z1...
+     */
+    public KdFFunction(double[] evalPoints) {
+        this.nbEval = evalPoints.length / 3;
+        this.mask = null;
+        this.seed = 0;
+        this.evalPoints = evalPoints;
+    }
+
+    /**
+     * Evaluation points given directly, trees shared with other descriptors
+     * @param evalPoints x0, y0, z0, x1, y1, z1...
+     * @param shared trees of the samples
+     */
+    public KdFFunction(double[] evalPoints, SharedSamples shared) {
+        this(evalPoints);
+        this.shared = shared;
+    }
+
+    @Override
+    public boolean init() {
+        if (evalPoints != null) return true;
+        Voxel3D[] voxels = mask.getVoxels().toArray(new Voxel3D[0]);
+        if (voxels.length == 0) return false;
+        double rxy = mask.getResXY(), rz = mask.getResZ();
+        SplittableRandom random = new SplittableRandom(seed);
+        evalPoints = new double[3 * nbEval];
+        for (int i = 0; i < nbEval; i++) {
+            Voxel3D v = voxels[random.nextInt(voxels.length)];
+            evalPoints[3*i] = v.getX() * rxy;
+            evalPoints[3*i + 1] = v.getY() * rxy;
+            evalPoints[3*i + 2] = v.getZ() * rz;
+        }
+        return true;
+    }
+
+    @Override
+    public ArrayUtil compute(Objects3DPopulation pop) {
+        return new ArrayUtil(compute(Centroids.of(pop)));
+    }
+
+    /**
+     * Distances of the evaluation points to the nearest center
+     * @param centroids x0, y0, z0, x1, y1, z1...
+     * @return
+     */
+    @Override
+    public double[] compute(double[] centroids) {
+        if (evalPoints == null) init();
+        KDTree3D tree = (shared != null) ? shared.tree(centroids) : new KDTree3D(centroids);
+        return tree.nearestDistances(evalPoints);
+    }
+
+    public double[] getEvalPoints() {
+        return evalPoints;
+    }
+
+    @Override
+    public String getName() {
+        return "F-function";
+    }
+}
@@ -0,0 +1,51 @@
+package Orion.Toolbox.Spatial;
+
+import mcib3d.geom.Objects3DPopulation;
+import mcib3d.utils.ArrayUtil;
+
+/**
+ * G-function descriptor: distance of each object to its nearest neighbour (calibrated centers),
+ * with a KD-tree built once per population instead of all pairs of objects.
+ */
+public class KdGFunction implements CentroidDescriptor {
+
+    // trees shared with other descriptors (null for none)
+    private final SharedSamples shared;
+
+    public KdGFunction() {
+        this(null);
+    }
+
+    /**
+     * @param shared trees of the samples shared with other descriptors
+     */
+    public KdGFunction(SharedSamples shared) {
+        this.shared = shared;
+    }
+
+    @Override
+    public boolean init() {
+        return true;
+    }
+
+    @Override
+    public ArrayUtil compute(Objects3DPopulation pop) {
+        return new ArrayUtil(compute(Centroids.of(pop)));
+    }
+
+    /**
+     * Nearest neighbour distances of centers
+     * @param centroids x0, y0, z0, x1, y1, z1...
+     * @return
+     */
+    @Override
+    public double[] compute(double[] centroids) {
+        KDTree3D tree = (shared != null) ? shared.tree(centroids) : new KDTree3D(centroids);
+        return tree.nearestNeighbourDistances();
+    }
+
+    @Override
+    public String getName() {
+        return "G-function";
+    }
+}
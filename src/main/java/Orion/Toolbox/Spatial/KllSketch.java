@@ -0,0 +1,210 @@
+package Orion.Toolbox.Spatial;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/**
+ * Streaming quantile sketch (KLL) of double values.
+ *
+ * Values are kept in levels of compactors, an item of level h standing for 2^h values. When the
+ * sketch is full, the lowest full level is sorted and every other item, from a random offset,
+ * moves up one level. Memory is O(k log(n/k)) and ranks are within getNormalizedRankError() of the
+ * exact ones, with high probability. Sketches of the same k can be merged, e.g. one per thread.
+ */
+public class KllSketch {
+
+    private static final double DECAY = 2.0 / 3.0;
+
+    private final int k;
+    // items of each level, sizes[h] items used in levels[h]
+    private double[][] levels = new double[1][];
+    private int[] sizes = new int[1];
+    private long n = 0;
+    private double min = Double.NaN, max = Double.NaN;
+    // random offset of the compactions
+    private final SplittableRandom coin;
+    private boolean sorted = true;
+
+    /**
+     * @param k accuracy parameter (200 gives about 1.3% rank error)
+     */
+    public KllSketch(int k) {
+        this(k, new SplittableRandom());
+    }
+
+    /**
+     * @param k accuracy parameter
+     * @param seed seed of the compaction offsets, same values and seed give the same sketch
+     */
+    public KllSketch(int k, long seed) {
+        this(k, new SplittableRandom(seed));
+    }
+
+    private KllSketch(int k, SplittableRandom coin) {
+        this.k = Math.max(8, k);
+        this.coin = coin;
+        levels[0] = new double[this.k];
+    }
+
+    /**
+     * Normalized rank error of a sketch with parameter k (single rank, 99% confidence)
+     */
+    public static double normalizedRankError(int k) {
+        return 2.296 / Math.pow(k, 0.9723);
+    }
+
+    public double getNormalizedRankError() {
+        return normalizedRankError(k);
+    }
+
+    public long getN() {
+        return n;
+    }
+
+    public double getMin() {
+        return min;
+    }
+
+    public double getMax() {
+        return max;
+    }
+
+    private int capacity(int h) {
+        return Math.max(2, (int) Math.ceil(k * Math.pow(DECAY, levels.length - 1 - h)));
+    }
+
+    public synchronized void update(double v) {
+        if (Double.isNaN(v)) return;
+        if (n == 0) {
+            min = v;
+            max = v;
+        } else {
+            min = Math.min(min, v);
+            max = Math.max(max, v);
+        }
+        n++;
+        add(0, v);
+        sorted = false;
+        compress();
+    }
+
+    /**
+     * Add the values of another sketch
+     * @param other
+     */
+    public synchronized void merge(KllSketch other) {
+        if (other.n == 0) return;
+        for (int h = 0; h < other.levels.length; h++)
+            for (int i = 0; i < other.sizes[h]; i++)
+                add(h, other.levels[h][i]);
+        min = (n == 0) ? other.min : Math.min(min, other.min);
+        max = (n == 0) ? other.max : Math.max(max, other.max);
+        n += other.n;
+        sorted = false;
+        compress();
+    }
+
+    private void add(int h, double v) {
+        while (h >= levels.length) {
+            levels = Arrays.copyOf(levels, levels.length + 1);
+            levels[levels.length - 1] = new double[k];
+            sizes = Arrays.copyOf(sizes, sizes.length + 1);
+        }
+        if (sizes[h] == levels[h].length)
+            levels[h] = Arrays.copyOf(levels[h], 2 * levels[h].length);
+        levels[h][sizes[h]++] = v;
+    }
+
+    private void compress() {
+        while (true) {
+            int total = 0, cap = 0;
+            for (int h = 0; h < levels.length; h++) {
+                total += sizes[h];
+                cap += capacity(h);
+            }
+            if (total <= cap) return;
+            for (int h = 0; h < levels.length; h++) {
+                if (sizes[h] >= capacity(h)) {
+                    compact(h);
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Every other item of the sorted level moves to the next level, an odd item stays
+     */
+    private void compact(int h) {
+        double[] level = levels[h];
+        int size = sizes[h];
+        Arrays.sort(level, 0, size);
+        int keep = size % 2;
+        int start = keep + (coin.nextBoolean() ? 1 : 0);
+        double kept = level[0];
+        for (int i = start; i < size; i += 2)
+            add(h + 1, levels[h][i]);
+        sizes[h] = 0;
+        if (keep == 1) levels[h][sizes[h]++] = kept;
+    }
+
+    private void sortLevels() {
+        if (sorted) return;
+        for (int h = 0; h < levels.length; h++)
+            Arrays.sort(levels[h], 0, sizes[h]);
+        sorted = true;
+    }
+
+    /**
+     * Fraction of the values lower or equal to x
+     * @param x
+     * @return
+     */
+    public synchronized double rank(double x) {
+        if (n == 0) return Double.NaN;
+        sortLevels();
+        long w = 0;
+        for (int h = 0; h < levels.length; h++) {
+            // items <= x in the sorted level
+            int lo = 0, hi = sizes[h];
+            while (lo < hi) {
+                int m = (lo + hi) >>> 1;
+                if (levels[h][m] <= x) lo = m + 1;
+                else hi = m;
+            }
+            w += (long) lo << h;
+        }
+        return (double) w / n;
+    }
+
+    /**
+     * Value of normalized rank q
+     * @param q in [0, 1]
+     * @return
+     */
+    public synchronized double quantile(double q) {
+        if (n == 0) return Double.NaN;
+        if (q <= 0) return min;
+        if (q >= 1) return max;
+        int total = 0;
+        for (int h = 0; h < levels.length; h++) total += sizes[h];
+        double[] values = new double[total];
+        long[] weights = new long[total];
+        Integer[] order = new Integer[total];
+        int j = 0;
+        for (int h = 0; h < levels.length; h++)
+            for (int i = 0; i < sizes[h]; i++, j++) {
+                values[j] = levels[h][i];
+                weights[j] = 1L << h;
+                order[j] = j;
+            }
+        Arrays.sort(order, (a, b) -> Double.compare(values[a], values[b]));
+        double target = q * n;
+        long cum = 0;
+        for (int i : order) {
+            cum += weights[i];
+            if (cum >= target) return values[i];
+        }
+        return max;
+    }
+}
@@ -0,0 +1,32 @@
+package Orion.Toolbox.Spatial;
+
+/**
+ * Besag L-function descriptor, centered: L(r) - r = (3 K(r) / 4 pi)^(1/3) - r, 0 under complete
+ * spatial randomness, positive for clustering and negative for regularity. Its variance depends
+ * little on r, so it suits the maximal deviation of the sdi better than K.
+ */
+public class LFunction extends RipleyFunction {
+
+    /**
+     * @param roi region of the centers
+     * @param rMax largest radius (calibrated)
+     * @param nbRadii number of radii
+     * @param correction edge correction
+     */
+    public LFunction(RoiVoxels roi, double rMax, int nbRadii, EdgeCorrection correction) {
+        super(roi, rMax, nbRadii, correction);
+    }
+
+    @Override
+    public double[] compute(double[] centroids) {
+        double[] k = kFunction(centroids);
+        double[] radii = getRadii();
+        for (int r = 0; r < k.length; r++) k[r] = Math.cbrt(3 * k[r] / (4 * Math.PI)) - radii[r];
+        return k;
+    }
+
+    @Override
+    public String getName() {
+        return "L-function";
+    }
+}
@@ -0,0 +1,38 @@
+package Orion.Toolbox.Spatial;
+
+/**
+ * Pair correlation function descriptor: g(r) = K'(r) / 4 pi r^2, estimated on the shells between
+ * consecutive radii, 1 under complete spatial randomness.
+ */
+public class PairCorrelationFunction extends RipleyFunction {
+
+    /**
+     * @param roi region of the centers
+     * @param rMax largest radius (calibrated)
+     * @param nbRadii number of radii
+     * @param correction edge correction
+     */
+    public PairCorrelationFunction(RoiVoxels roi, double rMax, int nbRadii, EdgeCorrection correction) {
+        super(roi, rMax, nbRadii, correction);
+    }
+
+    @Override
+    public double[] compute(double[] centroids) {
+        double[] k = kFunction(centroids);
+        double[] radii = getRadii();
+        double[] g = new double[k.length];
+        double kPrev = 0, rPrev = 0;
+        for (int r = 0; r < k.length; r++) {
+            double shell = 4.0 / 3.0 * Math.PI * (radii[r] * radii[r] * radii[r] - rPrev * rPrev * rPrev);
+            g[r] = (k[r] - kPrev) / shell;
+            kPrev = k[r];
+            rPrev = radii[r];
+        }
+        return g;
+    }
+
+    @Override
+    public String getName() {
+        return "Pair correlation";
+    }
+}
@@ -0,0 +1,139 @@
+package Orion.Toolbox.Spatial;
+
+import mcib3d.geom.Objects3DPopulation;
+import mcib3d.utils.ArrayUtil;
+
+import java.util.stream.IntStream;
+
+/**
+ * Ripley K-function of calibrated centers at regularly spaced radii, edge corrected against the
+ * region. All radii are evaluated in one KD-tree range query per center (distances up to the
+ * largest radius, binned by radius), instead of all pairs of centers for each radius.
+ *
+ * Border correction only counts the neighbours of centers farther than r from the region
+ * boundary. Isotropic correction weights each pair by the inverse of the fraction of the sphere
+ * around the center, of radius the distance of the pair, that lies in the region, estimated on
+ * NB_DIRECTIONS directions.
+ */
+public abstract class RipleyFunction implements CurveDescriptor {
+
+    public enum EdgeCorrection {BORDER, ISOTROPIC}
+
+    // directions of the sphere fractions of the isotropic correction
+    private static final int NB_DIRECTIONS = 64;
+
+    private final RoiVoxels roi;
+    private final double[] radii;
+    private final EdgeCorrection correction;
+    // boundary voxels (border correction) or unit directions (isotropic correction)
+    private KDTree3D boundary = null;
+    private double[] directions = null;
+
+    /**
+     * @param roi region of the centers
+     * @param rMax largest radius (calibrated)
+     * @param nbRadii number of radii, from rMax / nbRadii to rMax
+     * @param correction edge correction
+     */
+    protected RipleyFunction(RoiVoxels roi, double rMax, int nbRadii, EdgeCorrection correction) {
+        this.roi = roi;
+        this.correction = correction;
+        radii = new double[Math.max(1, nbRadii)];
+        for (int k = 0; k < radii.length; k++) radii[k] = rMax * (k + 1) / radii.length;
+    }
+
+    @Override
+    public boolean init() {
+        if (roi.size() == 0) return false;
+        if (correction == EdgeCorrection.BORDER) {
+            if (boundary == null) boundary = new KDTree3D(roi.boundaryPoints());
+        } else if (directions == null) {
+            // Fibonacci sphere
+            double[] dirs = new double[3 * NB_DIRECTIONS];
+            double golden = Math.PI * (3 - Math.sqrt(5));
+            for (int d = 0; d < NB_DIRECTIONS; d++) {
+                double z = 1 - (2 * d + 1.0) / NB_DIRECTIONS;
+                double r = Math.sqrt(1 - z * z);
+                dirs[3*d] = r * Math.cos(golden * d);
+                dirs[3*d + 1] = r * Math.sin(golden * d);
+                dirs[3*d + 2] = z;
+            }
+            directions = dirs;
+        }
+        return true;
+    }
+
+    @Override
+    public double[] getRadii() {
+        return radii.clone();
+    }
+
+    @Override
+    public ArrayUtil compute(Objects3DPopulation pop) {
+        return new ArrayUtil(compute(Centroids.of(pop)));
+    }
+
+    /**
+     * Edge corrected K-function
+     * @param centroids x0, y0, z0, x1, y1, z1...
+     * @return K at each radius
+     */
+    public double[] kFunction(double[] centroids) {
+        if (boundary == null && directions == null) init();
+        final int n = centroids.length / 3;
+        final int nr = radii.length;
+        double[] k = new double[nr];
+        if (n < 2) return k;
+        final KDTree3D tree = new KDTree3D(centroids);
+        // cumulated (weighted) neighbour counts of each center, NaN where the center is not used
+        final double[][] counts = new double[n][];
+        IntStream.range(0, n).parallel().forEach(i -> {
+            double x = centroids[3*i], y = centroids[3*i + 1], z = centroids[3*i + 2];
+            double[] c = new double[nr];
+            double cum = 0;
+            if (correction == EdgeCorrection.BORDER) {
+                int[] hist = new int[nr];
+                tree.histogramWithin(x, y, z, radii, i, hist);
+                double b = boundary.nearestDistance(x, y, z, -1);
+                for (int r = 0; r < nr; r++) {
+                    cum += hist[r];
+                    c[r] = (b >= radii[r]) ? cum : Double.NaN;
+                }
+            } else {
+                double[] hist = new double[nr];
+                tree.histogramWithin(x, y, z, radii, i, d -> 1 / sphereFraction(x, y, z, d), hist);
+                for (int r = 0; r < nr; r++) {
+                    cum += hist[r];
+                    c[r] = cum;
+                }
+            }
+            counts[i] = c;
+        });
+        double lambda = n / roi.volume();
+        for (int r = 0; r < nr; r++) {
+            double sum = 0;
+            int used = 0;
+            for (int i = 0; i < n; i++) {
+                if (!Double.isNaN(counts[i][r])) {
+                    sum += counts[i][r];
+                    used++;
+                }
+            }
+            if (correction == EdgeCorrection.BORDER)
+                k[r] = (used > 0) ? sum / used / lambda : 0;
+            else
+                k[r] = sum / (n - 1) / lambda;
+        }
+        return k;
+    }
+
+    /**
+     * Fraction of the sphere of radius r around a center inside the region, at least one direction
+     */
+    private double sphereFraction(double x, double y, double z, double r) {
+        int in = 0;
+        for (int d = 0; d < NB_DIRECTIONS; d++)
+            if (roi.contains(x + r * directions[3*d], y + r * directions[3*d + 1], z + r * directions[3*d + 2])) in++;
+        return (double) Math.max(1, in) / NB_DIRECTIONS;
+    }
+}
@@ -0,0 +1,170 @@
+package Orion.Toolbox.Spatial;
+
+import mcib3d.geom2.Object3DInt;
+import mcib3d.geom2.Object3DPlane;
+import mcib3d.geom2.VoxelInt;
+
+import java.util.BitSet;
+import java.util.SplittableRandom;
+
+/**
+ * Voxels of a region, as a compact list of indices in its bounding box, for uniform random
+ * draws in O(1) and calibrated coordinates without any image.
+ */
+public class RoiVoxels {
+
+    private final int[] index;
+    private final int x0, y0, z0, width, height, depth;
+    private final double sizeXY, sizeZ;
+    // voxels as a bit mask of the bounding box, built on first use
+    private volatile BitSet mask = null;
+
+    private RoiVoxels(int[] index, int x0, int y0, int z0, int width, int height, int depth, double sizeXY, double sizeZ) {
+        this.index = index;
+        this.x0 = x0;
+        this.y0 = y0;
+        this.z0 = z0;
+        this.width = width;
+        this.height = height;
+        this.depth = depth;
+        this.sizeXY = sizeXY;
+        this.sizeZ = sizeZ;
+    }
+
+    /**
+     * Voxels of an object
+     * @param roi
+     * @param sizeXY voxel size in x and y
+     * @param sizeZ voxel size in z
+     * @return
+     */
+    public static RoiVoxels of(Object3DInt roi, double sizeXY, double sizeZ) {
+        int xmin = Integer.MAX_VALUE, ymin = Integer.MAX_VALUE, zmin = Integer.MAX_VALUE;
+        int xmax = Integer.MIN_VALUE, ymax = Integer.MIN_VALUE, zmax = Integer.MIN_VALUE;
+        int n = 0;
+        for (Object3DPlane plane : roi.getObject3DPlanes()) {
+            for (VoxelInt v : plane.getVoxels()) {
+                xmin = Math.min(xmin, v.getX()); xmax = Math.max(xmax, v.getX());
+                ymin = Math.min(ymin, v.getY()); ymax = Math.max(ymax, v.getY());
+                zmin = Math.min(zmin, v.getZ()); zmax = Math.max(zmax, v.getZ());
+                n++;
+            }
+        }
+        if (n == 0)
+            return new RoiVoxels(new int[0], 0, 0, 0, 0, 0, 0, sizeXY, sizeZ);
+        int w = xmax - xmin + 1, h = ymax - ymin + 1, d = zmax - zmin + 1;
+        int[] index = new int[n];
+        int i = 0;
+        for (Object3DPlane plane : roi.getObject3DPlanes())
+            for (VoxelInt v : plane.getVoxels())
+                index[i++] = ((v.getZ() - zmin) * h + v.getY() - ymin) * w + v.getX() - xmin;
+        return new RoiVoxels(index, xmin, ymin, zmin, w, h, d, sizeXY, sizeZ);
+    }
+
+    /**
+     * Number of voxels
+     */
+    public int size() {
+        return index.length;
+    }
+
+    /**
+     * Calibrated volume
+     */
+    public double volume() {
+        return index.length * sizeXY * sizeXY * sizeZ;
+    }
+
+    public double getSizeXY() {
+        return sizeXY;
+    }
+
+    public double getSizeZ() {
+        return sizeZ;
+    }
+
+    /**
+     * Calibrated bounding box
+     * @return xmin, ymin, zmin, xmax, ymax, zmax
+     */
+    public double[] bounds() {
+        return new double[]{x0 * sizeXY, y0 * sizeXY, z0 * sizeZ,
+                (x0 + width - 1) * sizeXY, (y0 + height - 1) * sizeXY, (z0 + depth - 1) * sizeZ};
+    }
+
+    /**
+     * Calibrated coordinates of voxel i
+     * @param i
+     * @param out receives x, y, z at offset
+     * @param offset
+     */
+    public void point(int i, double[] out, int offset) {
+        int idx = index[i];
+        out[offset] = (idx % width + x0) * sizeXY;
+        out[offset + 1] = ((idx / width) % height + y0) * sizeXY;
+        out[offset + 2] = (idx / (width * height) + z0) * sizeZ;
+    }
+
+    private BitSet mask() {
+        BitSet m = mask;
+        if (m == null) {
+            synchronized (this) {
+                m = mask;
+                if (m == null) {
+                    m = new BitSet(width * height * depth);
+                    for (int idx : index) m.set(idx);
+                    mask = m;
+                }
+            }
+        }
+        return m;
+    }
+
+    private boolean contains(int vx, int vy, int vz) {
+        if (vx < 0 || vy < 0 || vz < 0 || vx >= width || vy >= height || vz >= depth) return false;
+        return mask().get((vz * height + vy) * width + vx);
+    }
+
+    /**
+     * Calibrated point in the region (nearest voxel)
+     * @param x
+     * @param y
+     * @param z
+     * @return
+     */
+    public boolean contains(double x, double y, double z) {
+        return contains((int) Math.round(x / sizeXY) - x0, (int) Math.round(y / sizeXY) - y0, (int) Math.round(z / sizeZ) - z0);
+    }
+
+    /**
+     * Voxels of the region with a 6-neighbour outside it
+     * @return calibrated coordinates x0, y0, z0, x1, y1, z1...
+     */
+    public double[] boundaryPoints() {
+        int[] border = new int[index.length];
+        int n = 0;
+        for (int i = 0; i < index.length; i++) {
+            int idx = index[i];
+            int vx = idx % width, vy = (idx / width) % height, vz = idx / (width * height);
+            if (!contains(vx - 1, vy, vz) || !contains(vx + 1, vy, vz) || !contains(vx, vy - 1, vz)
+                    || !contains(vx, vy + 1, vz) || !contains(vx, vy, vz - 1) || !contains(vx, vy, vz + 1))
+                border[n++] = i;
+        }
+        double[] xyz = new double[3 * n];
+        for (int i = 0; i < n; i++) point(border[i], xyz, 3 * i);
+        return xyz;
+    }
+
+    /**
+     * Uniform random voxels
+     * @param n
+     * @param random
+     * @return calibrated coordinates x0, y0, z0, x1, y1, z1...
+     */
+    public double[] randomPoints(int n, SplittableRandom random) {
+        double[] xyz = new double[3 * n];
+        for (int i = 0; i < n; i++)
+            point(random.nextInt(index.length), xyz, 3 * i);
+        return xyz;
+    }
+}
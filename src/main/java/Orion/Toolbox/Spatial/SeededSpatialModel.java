@@ -0,0 +1,20 @@
+package Orion.Toolbox.Spatial;
+
+import mcib3d.geom.Objects3DPopulation;
+import mcib3d.spatial.sampler.SpatialModel;
+
+import java.util.SplittableRandom;
+
+/**
+ * Spatial model drawing its samples from a given random generator, so that
+ * Monte Carlo results are reproducible whatever the number of threads.
+ */
+public interface SeededSpatialModel extends SpatialModel {
+
+    /**
+     * Random population
+     * @param random generator of this sample only
+     * @return
+     */
+    Objects3DPopulation getSample(SplittableRandom random);
+}
@@ -0,0 +1,114 @@
+package Orion.Toolbox.Spatial;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Random populations and their KD-trees shared by several descriptors, e.g. G and F computed by
+ * two SpatialStatistics with the same seed: the first one to ask for the sample of a seed draws
+ * it and builds its tree, the others get the same ones, and the entry is dropped once all
+ * descriptors have used it. A sample is drawn outside of the map lock, the others waiting for it
+ * on its future.
+ */
+public class SharedSamples implements CentroidModel {
+
+    private final CentroidModel model;
+    private final int nbUsers;
+    // sample of each sample key, completed by the descriptor drawing it
+    private final Map<Long, CompletableFuture<double[]>> samples = new ConcurrentHashMap<>();
+    // tree and remaining uses of each shared sample (or observed population)
+    private final Map<double[], Entry> entries = Collections.synchronizedMap(new IdentityHashMap<>());
+
+    private static class Entry {
+        final Long key;
+        KDTree3D tree = null;
+        int remaining;
+
+        Entry(Long key, int remaining) {
+            this.key = key;
+            this.remaining = remaining;
+        }
+    }
+
+    /**
+     * @param model model of the samples
+     * @param nbUsers number of descriptors using each sample
+     */
+    public SharedSamples(CentroidModel model, int nbUsers) {
+        this.model = model;
+        this.nbUsers = nbUsers;
+    }
+
+    @Override
+    public boolean init() {
+        return model.init();
+    }
+
+    /**
+     * Sample of the first draw of random: same random state, same sample
+     */
+    @Override
+    public double[] getSample(SplittableRandom random) {
+        Long key = random.nextLong();
+        CompletableFuture<double[]> drawn = new CompletableFuture<>();
+        CompletableFuture<double[]> future = samples.putIfAbsent(key, drawn);
+        if (future != null) return future.join();
+        try {
+            double[] sample = model.getSample(new SplittableRandom(key));
+            entries.put(sample, new Entry(key, nbUsers));
+            drawn.complete(sample);
+            return sample;
+        } catch (RuntimeException e) {
+            samples.remove(key);
+            drawn.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Share the tree of a population that is not a sample (observed centroids)
+     * @param centroids
+     */
+    public void register(double[] centroids) {
+        entries.put(centroids, new Entry(null, nbUsers));
+    }
+
+    /**
+     * KD-tree of shared centroids, built once, dropped after its last use (built directly if the
+     * centroids are not shared)
+     * @param centroids x0, y0, z0, x1, y1, z1...
+     * @return
+     */
+    public KDTree3D tree(double[] centroids) {
+        Entry entry = entries.get(centroids);
+        if (entry == null) return new KDTree3D(centroids);
+        KDTree3D tree;
+        synchronized (entry) {
+            if (entry.tree == null) entry.tree = new KDTree3D(centroids);
+            tree = entry.tree;
+            if (--entry.remaining == 0) {
+                entry.tree = null;
+                entries.remove(centroids);
+                if (entry.key != null) samples.remove(entry.key);
+            }
+        }
+        return tree;
+    }
+
+    /**
+     * Drop all samples and trees, e.g. those left by a cancelled or failed computation
+     */
+    public void clear() {
+        samples.clear();
+        entries.clear();
+    }
+
+    @Override
+    public String getName() {
+        return model.getName();
+    }
+}
@@ -8,8 +8,20 @@ import mcib3d.spatial.sampler.SpatialModel;
 import mcib3d.utils.ArrayUtil;
 import mcib3d.utils.CDFTools;
 import mcib3d.utils.ThreadUtil;
+import Orion.Toolbox.Spatial.CentroidDescriptor;
+import Orion.Toolbox.Spatial.CentroidModel;
+import Orion.Toolbox.Spatial.CurveDescriptor;
+import Orion.Toolbox.Spatial.KllSketch;
+import Orion.Toolbox.Spatial.SeededSpatialModel;
 
 import java.awt.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -17,11 +29,27 @@ import java.util.concurrent.atomic.AtomicInteger;
  */
 public class SpatialStatistics {
 
+    // x values of the envelope
+    private static final int NB_BINS = 1000;
+    // range of the streaming grid, relative to the largest observed or pilot value
+    private static final double GRID_MARGIN = 1.5;
+    // normal quantile of the adaptive confidence interval (99%, the interval being checked after each batch)
+    private static final double ADAPTIVE_Z = 2.576;
+    // ranked samples before the adaptive mode may stop
+    private static final int ADAPTIVE_MIN_SAMPLES = 100;
+
     // required fields
     private final SpatialDescriptor descriptor;
     private final SpatialModel model;
     private final int nbSamples;
     private final Objects3DPopulation observed;
+    // or centroids, without populations of objects
+    private final CentroidDescriptor centroidDescriptor;
+    private final CentroidModel centroidModel;
+    private final double[] observedCentroids;
+    private final String modelName;
+    // descriptor giving curves at fixed radii (null for distributions of values)
+    private final CurveDescriptor curveDescriptor;
 
     // final sdi value
     private double sdi = Double.NaN;
@@ -34,6 +62,30 @@ public class SpatialStatistics {
 
     // misc
     private boolean verbose = true;
+    // one generation of samples for average, envelope and sdi
+    private boolean singlePass = false;
+    // fraction of the samples used only for the average in single pass (0 = all samples for everything)
+    private double averageSplit = 0;
+    // samples described at once
+    private int parallelism = (int) Math.ceil(0.75 * ThreadUtil.getNbCpus());
+    // seeds of the samples
+    private SplittableRandom random = new SplittableRandom();
+    private ProgressListener listener = null;
+    private volatile boolean cancelled = false;
+    // sampling pool of the running computation, parallelism threads
+    private ForkJoinPool pool = null;
+    // sketch and grid instead of all sample values
+    private boolean streaming = false;
+    private int sketchAccuracy = 200;
+    private double envelopeError = 0;
+    // samples drawn in batches until the sdi is known within the tolerance
+    private boolean adaptive = false;
+    private double tolerance = 0.02;
+    private int batchSize = 50;
+    private double[] sdiInterval = {0, 1};
+    // run statistics
+    private int nbSamplesUsed = 0;
+    private long elapsedTime = 0;
 
     // intermediate values
     private ArrayUtil xEvals;
@@ -50,6 +102,11 @@ public class SpatialStatistics {
 
         this.observed = observed;
         this.nbSamples = nbSamples;
+        this.centroidDescriptor = null;
+        this.centroidModel = null;
+        this.observedCentroids = null;
+        this.modelName = model.getName();
+        this.curveDescriptor = null;
         if (!this.model.init()) {
             IJ.log("Pb with model");
         }
@@ -58,18 +115,72 @@ public class SpatialStatistics {
         }
     }
 
+    /**
+     * Statistics on calibrated centroids, observed and random populations are never built as objects
+     * @param descriptor
+     * @param model
+     * @param nbSamples
+     * @param observed centroids x0, y0, z0, x1, y1, z1...
+     */
+    public SpatialStatistics(CentroidDescriptor descriptor, CentroidModel model, int nbSamples, double[] observed) {
+        this.descriptor = descriptor;
+        this.model = null;
+        this.observed = null;
+        this.nbSamples = nbSamples;
+        this.centroidDescriptor = descriptor;
+        this.centroidModel = model;
+        this.observedCentroids = observed;
+        this.modelName = model.getName();
+        this.curveDescriptor = (descriptor instanceof CurveDescriptor) ? (CurveDescriptor) descriptor : null;
+        if (!this.centroidModel.init()) {
+            IJ.log("Pb with model");
+        }
+        if (!this.descriptor.init()) {
+            IJ.log("Pb with descriptor");
+        }
+    }
+
     private void compute() {
+        long start = System.currentTimeMillis();
+        cancelled = false;
+        pool = new ForkJoinPool(parallelism);
+        try {
+            computeSdi();
+        } finally {
+            pool.shutdown();
+            pool = null;
+        }
+        elapsedTime = System.currentTimeMillis() - start;
+    }
+
+    private void computeSdi() {
         // Observed
         if (verbose) {
             IJ.log("Computing " + descriptor.getName() + " for observed data");
         }
-        obsDesc = descriptor.compute(observed);
+        if (curveDescriptor != null) {
+            computeCurves();
+            return;
+        }
+        obsDesc = describeObserved();
         int nbDesc = obsDesc.size();
         obsDesc.sortMultithread();
         obsCD = CDFTools.cdf(obsDesc);
+        if (streaming) {
+            computeStreaming();
+            return;
+        }
+        if (adaptive) {
+            computeAdaptive(nbDesc);
+            return;
+        }
+        if (singlePass) {
+            computeSinglePass(nbDesc);
+            return;
+        }
         // Samples for average
         if (verbose) {
-            IJ.log("Average : Computing " + descriptor.getName() + " for " + nbSamples + " " + model.getName() + " data");
+            IJ.log("Average : Computing " + descriptor.getName() + " for " + nbSamples + " " + modelName + " data");
         }
         //model.getSampleImage().show();
         ArrayUtil[] samplesDesc = getSamplesParallel();
@@ -84,25 +195,295 @@ public class SpatialStatistics {
 
         // New samples for envelope and ranking
         if (verbose) {
-            IJ.log("Envelope : Computing " + descriptor.getName() + " for " + nbSamples + " " + model.getName() + " data");
+            IJ.log("Envelope : Computing " + descriptor.getName() + " for " + nbSamples + " " + modelName + " data");
         }
         samplesDesc = null;
         System.gc();
         samplesDesc = getSamplesParallel();
+        computeEnvelope(samplesDesc);
+
+        if (verbose) {
+            IJ.log("Computing " + descriptor.getName() + " sdi");
+        }
+        sdi = CDFTools.SDI(obsDesc, samplesDesc, averageCD, xEvals);
+        nbSamplesUsed = 2 * nbSamples;
+    }
+
+    /**
+     * Average from a first generation of samples, then ranking samples drawn in batches until the
+     * confidence interval of the sdi is narrower than the tolerance or lies on one side of the
+     * significance levels (env / 2 and 1 - env / 2), at most nbSamples ranking samples
+     * @param nbDesc number of descriptor values of a population
+     */
+    private void computeAdaptive(int nbDesc) {
+        final int batch = Math.max(1, Math.min(batchSize, nbSamples));
+        final int nbAverage = Math.min(nbSamples, Math.max(batch, nbSamples / 4));
+        final int total = nbAverage + nbSamples;
+        if (verbose) {
+            IJ.log("Average : Computing " + descriptor.getName() + " for " + nbAverage + " " + modelName + " data");
+        }
+        xEvals = new ArrayUtil(nbAverage * nbDesc);
+        ArrayUtil[] averageDesc = getSamplesParallel(nbAverage, 0, total, (i, desc) -> {
+            synchronized (xEvals) {
+                xEvals.insertValues(i * nbDesc, desc);
+            }
+        }, true);
+        xEvals.sortMultithread();
+        averageCD = CDFTools.cdfAverage(averageDesc, xEvals);
+        averageDesc = null;
+
+        List<ArrayUtil> rankDesc = new ArrayList<>(nbSamples);
+        int below = 0;
+        while (rankDesc.size() < nbSamples) {
+            int nb = Math.min(batch, nbSamples - rankDesc.size());
+            ArrayUtil[] batchDesc = getSamplesParallel(nb, nbAverage + rankDesc.size(), total, null, true);
+            // sdi is the fraction of samples closer to the average than the observed data, counts add up
+            below += (int) Math.round(CDFTools.SDI(obsDesc, batchDesc, averageCD, xEvals) * nb);
+            rankDesc.addAll(Arrays.asList(batchDesc));
+            sdiInterval = wilsonInterval(below, rankDesc.size());
+            if (verbose) {
+                IJ.log(descriptor.getName() + " sdi " + rankDesc.size() + " samples: [" + sdiInterval[0] + ", " + sdiInterval[1] + "]");
+            }
+            if (rankDesc.size() >= ADAPTIVE_MIN_SAMPLES && (sdiInterval[1] - sdiInterval[0] <= tolerance || settled(sdiInterval))) {
+                break;
+            }
+        }
+        sdi = (double) below / rankDesc.size();
+        nbSamplesUsed = nbAverage + rankDesc.size();
+        computeEnvelope(rankDesc.toArray(new ArrayUtil[0]));
+    }
+
+    /**
+     * Wilson score interval of a proportion
+     */
+    private static double[] wilsonInterval(int k, int n) {
+        double p = (double) k / n;
+        double z2 = ADAPTIVE_Z * ADAPTIVE_Z;
+        double center = (p + z2 / (2 * n)) / (1 + z2 / n);
+        double half = ADAPTIVE_Z * Math.sqrt(p * (1 - p) / n + z2 / (4.0 * n * n)) / (1 + z2 / n);
+        return new double[]{Math.max(0, center - half), Math.min(1, center + half)};
+    }
+
+    /**
+     * The interval contains none of the significance levels: significant or not, whatever the remaining samples
+     */
+    private boolean settled(double[] interval) {
+        double low = env / 2.0, high = 1.0 - env / 2.0;
+        return !(interval[0] <= low && low <= interval[1]) && !(interval[0] <= high && high <= interval[1]);
+    }
+
+    /**
+     * Average, envelope and sdi from one generation of samples, each sample being added to the
+     * x values of the average as soon as it is described
+     * @param nbDesc number of descriptor values of a population
+     */
+    private void computeSinglePass(int nbDesc) {
+        // samples [0, nbAverage) for the average, [firstRank, nbSamples) for envelope and sdi
+        int nbAverage = nbSamples;
+        int firstRank = 0;
+        if (averageSplit > 0 && nbSamples > 1) {
+            nbAverage = (int) Math.max(1, Math.min(nbSamples - 1, Math.round(averageSplit * nbSamples)));
+            firstRank = nbAverage;
+        }
+        if (verbose) {
+            IJ.log("Computing " + descriptor.getName() + " for " + nbSamples + " " + modelName + " data");
+        }
+        final int nbAvg = nbAverage;
+        xEvals = new ArrayUtil(nbAvg * nbDesc);
+        ArrayUtil[] samplesDesc = getSamplesParallel((i, desc) -> {
+            if (i < nbAvg) {
+                synchronized (xEvals) {
+                    xEvals.insertValues(i * nbDesc, desc);
+                }
+            }
+        }, true);
+        xEvals.sortMultithread();
+        averageCD = CDFTools.cdfAverage(Arrays.copyOfRange(samplesDesc, 0, nbAvg), xEvals);
+
+        ArrayUtil[] rankDesc = Arrays.copyOfRange(samplesDesc, firstRank, nbSamples);
+        computeEnvelope(rankDesc);
+        if (verbose) {
+            IJ.log("Computing " + descriptor.getName() + " sdi");
+        }
+        sdi = CDFTools.SDI(obsDesc, rankDesc, averageCD, xEvals);
+        nbSamplesUsed = nbSamples;
+    }
+
+    /**
+     * Average, envelope and sdi in bounded memory: samples are not kept, only their CDFs on a fixed
+     * grid of x values. A first generation adds them to per-bin sums (exact average on the grid), a
+     * second one updates per-bin quantile sketches (envelope) and counts the samples with a lower
+     * maximal distance to the average than the observed data (sdi, as CDFTools.SDI). Memory is O(NB_BINS) whatever nbSamples, the envelope is
+     * within the rank error of the sketches.
+     */
+    private void computeStreaming() {
+        if (verbose) {
+            IJ.log("Computing " + descriptor.getName() + " for " + nbSamples + " " + modelName + " data (streaming)");
+        }
+        // grid range from the observed data and a pilot sample
+        ArrayUtil pilot = describeSample(random.nextLong());
+        double max = GRID_MARGIN * Math.max(obsDesc.getMaximum(), pilot.getMaximum());
+        final double[] grid = new double[NB_BINS];
+        for (int i = 0; i < NB_BINS; i++) {
+            grid[i] = i * max / (NB_BINS - 1);
+        }
+        final double[] sums = new double[NB_BINS];
+        getSamplesParallel((i, desc) -> {
+            final float[] cd = gridCdf(desc, grid);
+            synchronized (sums) {
+                for (int b = 0; b < NB_BINS; b++) {
+                    sums[b] += cd[b];
+                }
+            }
+        }, false);
+        xEvals = new ArrayUtil(grid);
+        xEvalsEnv = xEvals;
+        averageCD = new ArrayUtil(NB_BINS);
+        for (int b = 0; b < NB_BINS; b++) {
+            averageCD.putValue(b, sums[b] / nbSamples);
+        }
+
+        // envelope and ranks from a second generation
+        if (verbose) {
+            IJ.log("Envelope : Computing " + descriptor.getName() + " for " + nbSamples + " " + modelName + " data (streaming)");
+        }
+        final KllSketch[] sketches = new KllSketch[NB_BINS];
+        for (int b = 0; b < NB_BINS; b++) {
+            sketches[b] = new KllSketch(sketchAccuracy, random.nextLong());
+        }
+        final double obsDist = Math.abs(signedDeviation(gridCdf(obsDesc, grid), averageCD));
+        final AtomicInteger below = new AtomicInteger(0);
+        getSamplesParallel((i, desc) -> {
+            final float[] cd = gridCdf(desc, grid);
+            for (int b = 0; b < NB_BINS; b++) {
+                sketches[b].update(cd[b]);
+            }
+            if (Math.abs(signedDeviation(cd, averageCD)) < obsDist) {
+                below.incrementAndGet();
+            }
+        }, false);
+        samplesEnvLow = new ArrayUtil(NB_BINS);
+        samplesEnvHigh = new ArrayUtil(NB_BINS);
+        for (int b = 0; b < NB_BINS; b++) {
+            samplesEnvLow.putValue(b, sketches[b].quantile(env / 2.0));
+            samplesEnvHigh.putValue(b, sketches[b].quantile(1.0 - env / 2.0));
+        }
+        envelopeError = KllSketch.normalizedRankError(sketchAccuracy);
+        sdi = (double) below.get() / nbSamples;
+        nbSamplesUsed = 2 * nbSamples + 1;
+    }
+
+    /**
+     * Envelope and sdi of a curve descriptor: the observed curve is compared to the average of the
+     * sample curves at each radius, as the CDFs of the streaming mode
+     */
+    private void computeCurves() {
+        final double[] radii = curveDescriptor.getRadii();
+        obsDesc = new ArrayUtil(radii);
+        obsCD = describeObserved();
+        if (verbose) {
+            IJ.log("Computing " + descriptor.getName() + " for " + nbSamples + " " + modelName + " data");
+        }
+        final float[][] samplesCurves = new float[nbSamples][];
+        getSamplesParallel((i, desc) -> samplesCurves[i] = toFloat(desc), false);
+
+        xEvals = obsDesc;
+        xEvalsEnv = obsDesc;
+        averageCD = new ArrayUtil(radii.length);
+        for (int b = 0; b < radii.length; b++) {
+            double sum = 0;
+            for (int i = 0; i < nbSamples; i++) {
+                sum += samplesCurves[i][b];
+            }
+            averageCD.putValue(b, sum / nbSamples);
+        }
+        rankCurves(samplesCurves, toFloat(obsCD));
+        nbSamplesUsed = nbSamples;
+    }
+
+    /**
+     * Envelope from the percentiles of the sample curves at each x value, sdi from the rank of the
+     * observed signed maximal deviation to the average among the sample ones (averageCD must be
+     * computed): below 0.5 when the observed curve is mostly below the average, above 0.5 otherwise
+     * @param samplesCurves sample values at each x value
+     * @param observed observed values at each x value
+     */
+    private void rankCurves(float[][] samplesCurves, float[] observed) {
+        final int nbX = observed.length;
+        samplesEnvLow = new ArrayUtil(nbX);
+        samplesEnvHigh = new ArrayUtil(nbX);
+        final float[] column = new float[nbSamples];
+        for (int b = 0; b < nbX; b++) {
+            for (int i = 0; i < nbSamples; i++) {
+                column[i] = samplesCurves[i][b];
+            }
+            Arrays.sort(column);
+            samplesEnvLow.putValue(b, column[(int) Math.round(env / 2.0 * (nbSamples - 1))]);
+            samplesEnvHigh.putValue(b, column[(int) Math.round((1.0 - env / 2.0) * (nbSamples - 1))]);
+        }
+
+        // sdi: rank of the observed deviation to the average among the sample deviations
+        if (verbose) {
+            IJ.log("Computing " + descriptor.getName() + " sdi");
+        }
+        double obsDist = signedDeviation(observed, averageCD);
+        int below = 0;
+        for (int i = 0; i < nbSamples; i++) {
+            if (signedDeviation(samplesCurves[i], averageCD) < obsDist) {
+                below++;
+            }
+        }
+        sdi = (double) below / nbSamples;
+    }
+
+    private static float[] toFloat(ArrayUtil values) {
+        final float[] f = new float[values.size()];
+        for (int i = 0; i < f.length; i++) {
+            f[i] = (float) values.getValue(i);
+        }
+        return f;
+    }
+
+    /**
+     * CDF of sorted values at the grid points
+     */
+    private static float[] gridCdf(ArrayUtil sorted, double[] grid) {
+        final float[] cd = new float[grid.length];
+        final int n = sorted.size();
+        int j = 0;
+        for (int b = 0; b < grid.length; b++) {
+            while (j < n && sorted.getValue(j) <= grid[b]) {
+                j++;
+            }
+            cd[b] = (float) j / n;
+        }
+        return cd;
+    }
+
+    /**
+     * Deviation to the average of largest absolute value, with its sign (curve minus average)
+     */
+    private static double signedDeviation(float[] cd, ArrayUtil average) {
+        double d = 0;
+        for (int b = 0; b < cd.length; b++) {
+            double v = cd[b] - average.getValue(b);
+            if (Math.abs(v) > Math.abs(d)) {
+                d = v;
+            }
+        }
+        return d;
+    }
+
+    private void computeEnvelope(ArrayUtil[] samplesDesc) {
         // uniform spaced 
         double max = xEvals.getMaximum();
-        int nbBins = 1000;
+        int nbBins = NB_BINS;
         xEvalsEnv = new ArrayUtil(nbBins);
         for (int i = 0; i < nbBins; i++) {
             xEvalsEnv.addValue(i, ((double) i) * max / ((double) nbBins));
         }
         samplesEnvLow = CDFTools.cdfPercentage(samplesDesc, xEvalsEnv, env / 2.0);
         samplesEnvHigh = CDFTools.cdfPercentage(samplesDesc, xEvalsEnv, 1.0 - env / 2.0);
-
-        if (verbose) {
-            IJ.log("Computing " + descriptor.getName() + " sdi");
-        }
-        sdi = CDFTools.SDI(obsDesc, samplesDesc, averageCD, xEvals);
     }
 
     // better to use non multithreaded version
@@ -115,7 +496,7 @@ public class SpatialStatistics {
             if (verbose) {
                 IJ.showStatus("Random population " + (i + 1));
             }
-            ArrayUtil tmp = descriptor.compute(model.getSample());
+            ArrayUtil tmp = describeSample(random.nextLong());
             tmp.sortMultithread();
             samplesDesc[i] = tmp;
         }
@@ -127,37 +508,87 @@ public class SpatialStatistics {
     // sorting will take most of the processing time
     // using now parallelSort
     private ArrayUtil[] getSamplesParallel() {
-        final ArrayUtil[] samplesDesc = new ArrayUtil[nbSamples];
-        final AtomicInteger ai = new AtomicInteger(0);
-        final int n_cpus = (int) Math.ceil(0.75*ThreadUtil.getNbCpus());
-        Thread[] threads = ThreadUtil.createThreadArray(n_cpus);
-        final int dec = (int) Math.ceil((double) nbSamples / (double) n_cpus);
-        
-        for (int ithread = 0; ithread < threads.length; ithread++) {
-            threads[ithread] = new Thread() {
-                @Override
-                public void run() {
-                    for (int k = ai.getAndIncrement(); k < n_cpus; k = ai.getAndIncrement()) {
-                        for (int i = dec * k; ((i < (dec * (k + 1))) && (i < nbSamples)); i++) {
-                            if (verbose) {
-                                IJ.log("Random population " + (i + 1) + " by processor " + (k + 1));
-                            }
-                            ArrayUtil tmp = descriptor.compute(model.getSample());
-                            tmp.sort();
-                            samplesDesc[i] = tmp;
-                            if (verbose) {
-                                IJ.log("Random population " + (i + 1) + " by processor " + (k + 1) + " finished");
-                            }
-                        }
+        return getSamplesParallel(null, true);
+    }
+
+    /**
+     * Describe nbSamples random populations, one task per sample on the sampling pool of this instance
+     * (at most parallelism samples at once). Each sample has its own seed, drawn in sample order,
+     * so seeded models give the same samples whatever the scheduling.
+     * @param reducer called with each sorted sample as soon as it is described (may be null)
+     * @param keep keep the descriptors of the samples
+     * @return sorted descriptors of the samples (null items if not kept)
+     */
+    private ArrayUtil[] getSamplesParallel(SampleReducer reducer, boolean keep) {
+        return getSamplesParallel(nbSamples, 0, nbSamples, reducer, keep);
+    }
+
+    /**
+     * Describe nb random populations
+     * @param nb number of samples
+     * @param progressBase samples already done, for the progress listener
+     * @param progressTotal samples to do, for the progress listener
+     * @param reducer called with each sorted sample as soon as it is described (may be null)
+     * @param keep keep the descriptors of the samples
+     * @return sorted descriptors of the samples (null items if not kept)
+     */
+    private ArrayUtil[] getSamplesParallel(int nb, int progressBase, int progressTotal, SampleReducer reducer, boolean keep) {
+        final ArrayUtil[] samplesDesc = new ArrayUtil[nb];
+        final long[] seeds = new long[nb];
+        for (int i = 0; i < nb; i++) {
+            seeds[i] = random.nextLong();
+        }
+        final AtomicInteger next = new AtomicInteger(0);
+        final AtomicInteger done = new AtomicInteger(0);
+        final int nbTasks = Math.max(1, Math.min(nb, parallelism));
+        List<ForkJoinTask<?>> tasks = new ArrayList<>(nbTasks);
+        for (int t = 0; t < nbTasks; t++) {
+            tasks.add(pool.submit(() -> {
+                // next sample as soon as one is finished: a slow sample doesn't hold others
+                for (int i = next.getAndIncrement(); i < nb && !cancelled; i = next.getAndIncrement()) {
+                    ArrayUtil tmp = describeSample(seeds[i]);
+                    if (curveDescriptor == null) {
+                        tmp.sort();
+                    }
+                    if (keep) {
+                        samplesDesc[i] = tmp;
+                    }
+                    if (reducer != null) {
+                        reducer.add(i, tmp);
+                    }
+                    int nbDone = done.incrementAndGet();
+                    if (listener != null) {
+                        listener.progress(progressBase + nbDone, progressTotal);
                     }
                 }
-            };
+            }));
+        }
+        for (ForkJoinTask<?> task : tasks) {
+            task.join();
+        }
+        if (cancelled) {
+            throw new CancellationException(descriptor.getName() + " cancelled");
         }
-        ThreadUtil.startAndJoin(threads);
-
         return samplesDesc;
     }
 
+    private ArrayUtil describeObserved() {
+        if (centroidDescriptor != null) {
+            return new ArrayUtil(centroidDescriptor.compute(observedCentroids));
+        }
+        return descriptor.compute(observed);
+    }
+
+    private ArrayUtil describeSample(long seed) {
+        if (centroidDescriptor != null) {
+            return new ArrayUtil(centroidDescriptor.compute(centroidModel.getSample(new SplittableRandom(seed))));
+        }
+        if (model instanceof SeededSpatialModel) {
+            return descriptor.compute(((SeededSpatialModel) model).getSample(new SplittableRandom(seed)));
+        }
+        return descriptor.compute(model.getSample());
+    }
+
     private void createPlot() {
         if (Double.isNaN(sdi)) {
             compute();
@@ -187,9 +618,17 @@ public class SpatialStatistics {
         if (obsDesc.getMaximum() > plotmaxX) {
             plotmaxX = obsDesc.getMaximum();
         }
+        double plotminY = 0;
+        String yLabel = "cumulated frequency";
+        if (curveDescriptor != null) {
+            // curves may be negative (L-function), y limits from the curves only
+            plotminY = Math.min(Math.min(obsCD.getMinimum(), samplesEnvLow.getMinimum()), averageCD.getMinimum());
+            plotmaxY = Math.max(Math.max(obsCD.getMaximum(), samplesEnvHigh.getMaximum()), averageCD.getMaximum());
+            yLabel = descriptor.getName();
+        }
         // create the plot
-        plot = new Plot(descriptor.getName() + "_" + model.getName(), "distance", "cumulated frequency");
-        plot.setLimits(0, plotmaxX, 0, plotmaxY);
+        plot = new Plot(descriptor.getName() + "_" + modelName, "distance", yLabel);
+        plot.setLimits(0, plotmaxX, plotminY, plotmaxY);
 
         // envelope
         plot.setColor(ColorENV);
@@ -245,4 +684,147 @@ public class SpatialStatistics {
         this.env = env;
     }
 
+    /**
+     * Draw one generation of samples for average, envelope and sdi instead of two
+     * @param singlePass
+     */
+    public void setSinglePass(boolean singlePass) {
+        this.singlePass = singlePass;
+    }
+
+    /**
+     * In single pass, fraction of the samples used only for the average, the others being used
+     * for envelope and sdi (0 = all samples used for everything)
+     * @param averageSplit
+     */
+    public void setAverageSplit(double averageSplit) {
+        this.averageSplit = averageSplit;
+    }
+
+    /**
+     * Number of samples described at once, threads of the sampling pool of this instance (default 75% of the cpus)
+     * @param parallelism
+     */
+    public void setParallelism(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * Seed of the random samples, same seed gives the same sdi with a SeededSpatialModel
+     * @param seed
+     */
+    public void setSeed(long seed) {
+        random = new SplittableRandom(seed);
+    }
+
+    /**
+     * Listener called from the sampling threads after each sample
+     * @param listener
+     */
+    public void setProgressListener(ProgressListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Stop sampling, the running computation throws a CancellationException
+     * The flag is cleared when a computation starts: a later getSdi computes again
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Bounded memory computation: sample CDFs on a grid of 1000 x values are summarized in per-bin
+     * sums (average) and quantile sketches (envelope), instead of all sample values being kept
+     * @param streaming
+     */
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
+    /**
+     * Accuracy parameter k of the streaming envelope sketches (default 200, about 1.3% rank error)
+     * @param k
+     */
+    public void setSketchAccuracy(int k) {
+        this.sketchAccuracy = k;
+    }
+
+    /**
+     * Rank error of the envelope (rank error of the sketches, 0 if not streaming)
+     * @return
+     */
+    public double getEnvelopeError() {
+        if (Double.isNaN(sdi)) {
+            compute();
+        }
+        return envelopeError;
+    }
+
+    /**
+     * Draw ranking samples in batches and stop as soon as the sdi is known within the tolerance,
+     * or is significant or not whatever the remaining samples (nbSamples is then a maximum)
+     * @param adaptive
+     */
+    public void setAdaptive(boolean adaptive) {
+        this.adaptive = adaptive;
+    }
+
+    /**
+     * Width of the 99% confidence interval of the sdi at which the adaptive mode stops (default 0.02)
+     * @param tolerance
+     */
+    public void setTolerance(double tolerance) {
+        this.tolerance = tolerance;
+    }
+
+    /**
+     * Samples drawn between two checks of the adaptive mode (default 50)
+     * @param batchSize
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    /**
+     * 99% confidence interval of the sdi in adaptive mode ([0, 1] otherwise)
+     * @return
+     */
+    public double[] getSdiInterval() {
+        if (Double.isNaN(sdi)) {
+            compute();
+        }
+        return sdiInterval.clone();
+    }
+
+    /**
+     * Random populations described for the sdi (average, envelope and ranking)
+     * @return
+     */
+    public int getNbSamplesUsed() {
+        if (Double.isNaN(sdi)) {
+            compute();
+        }
+        return nbSamplesUsed;
+    }
+
+    /**
+     * Time of the sdi computation in ms
+     * @return
+     */
+    public long getElapsedTime() {
+        if (Double.isNaN(sdi)) {
+            compute();
+        }
+        return elapsedTime;
+    }
+
+    public interface ProgressListener {
+        void progress(int done, int total);
+    }
+
+    private interface SampleReducer {
+        void add(int i, ArrayUtil desc);
+    }
+
 }
@@ -7,34 +7,32 @@ import java.util.stream.IntStream;
 
 import org.scijava.log.LogService;
 
-import de.lighti.clipper.Clipper;
-import de.lighti.clipper.DefaultClipper;
-import de.lighti.clipper.Path;
-import de.lighti.clipper.Paths;
-import de.lighti.clipper.Point.LongPoint;
 import ij.gui.PointRoi;
 import ij.gui.PolygonRoi;
 import ij.gui.Roi;
+import net.imglib2.Cursor;
 import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
 
 public class Candidates {
     
-    private final List<Path> polygons = new ArrayList<>();
+    private final List<long[]> polygons = new ArrayList<>(); // interleaved x,y coordinates
     private final List<Point2D> origins = new ArrayList<>();
     private final List<Box2D> bboxes = new ArrayList<>();
-    private final List<Double> areas = new ArrayList<>();
-    private final List<Float> scores = new ArrayList<>();
-    private final List<Integer> score_indices;
-    private final List<Integer> winner = new ArrayList<>();
+    private final double[] areas;
+    private final float[] scores;
+    private final int[] score_indices;
+    private int[] winner = new int[0];
     private final boolean[] suppressed;
+    private final int numAboveThreshold;
     private final boolean verbose;
     private final LogService log;
 
     // scale all coordinates by this value and divide later to get subpixel resolution
-    private static final long S = 100;
+    static final long S = 100;
     
     public Candidates(RandomAccessibleInterval<FloatType> prob, RandomAccessibleInterval<FloatType> dist) {
         this(prob, dist, 0.4);
@@ -44,7 +42,17 @@ public class Candidates {
         this(prob, dist, threshold, 2, null);
     }
 
-    public Candidates(RandomAccessibleInterval<FloatType> prob, RandomAccessibleInterval<FloatType> dist, double threshold, int b, LogService log) {        
+    public Candidates(RandomAccessibleInterval<FloatType> prob, RandomAccessibleInterval<FloatType> dist, double threshold, int b, LogService log) {
+        this(prob, dist, threshold, b, 1, 0, log);
+    }
+
+    /**
+     * Build polygon candidates from pixels with score > threshold
+     * Optional prefilter dropping redundant candidates before polygon construction:
+     * @param grid keep only pixels on a subsampling grid of this step (1 = all pixels)
+     * @param maximaRadius keep only local maxima of prob within this radius (0 = no filter)
+     */
+    public Candidates(RandomAccessibleInterval<FloatType> prob, RandomAccessibleInterval<FloatType> dist, double threshold, int b, int grid, int maximaRadius, LogService log) {
         final long start = System.currentTimeMillis();
         this.verbose = log != null;
         this.log = log;
@@ -56,16 +64,28 @@ public class Candidates {
         int nrays = (int)shape[2];
         final double[] phis = Utils.rayAngles(nrays);
         
-        final RandomAccess<FloatType> r = prob.randomAccess();
+        // read prob once
+        final int w = (int)shape[0], h = (int)shape[1];
+        final float[] p = new float[w*h];
+        final Cursor<FloatType> c = Views.flatIterable(prob).cursor();
+        for (int k = 0; k < p.length; k++)
+            p[k] = c.next().get();
+        final float[] localMax = (maximaRadius > 0) ? maxFilter(p, w, h, maximaRadius) : null;
+        
         final RandomAccess<FloatType> s = dist.randomAccess();
         
-        for (int i = b; i < shape[0]-b; i++) {
-            for (int j = b; j < shape[1]-b; j++) {
-                r.setPosition(i, 0); r.setPosition(j, 1);
-                s.setPosition(i, 0); s.setPosition(j, 1);
-                final float score = r.get().getRealFloat();
+        int nAbove = 0;
+        float[] scoresBuf = new float[1024];
+        double[] areasBuf = new double[1024];
+        for (int i = b; i < w-b; i++) {
+            for (int j = b; j < h-b; j++) {
+                final float score = p[i + j*w];
                 if (score > threshold) {
-                    final Path poly = new Path();
+                    nAbove++;
+                    if (grid > 1 && (i % grid != 0 || j % grid != 0)) continue;
+                    if (localMax != null && score < localMax[i + j*w]) continue;
+                    s.setPosition(i, 0); s.setPosition(j, 1);
+                    final long[] poly = new long[2*nrays];
                     long xmin = Long.MAX_VALUE, xmax = Long.MIN_VALUE;
                     long ymin = Long.MAX_VALUE, ymax = Long.MIN_VALUE;
                     for (int k = 0; k < nrays; k++) {
@@ -77,45 +97,84 @@ public class Candidates {
                         ymin = Math.min(ymin,y);
                         xmax = Math.max(xmax,x);
                         ymax = Math.max(ymax,y);
-                        poly.add(new LongPoint(x,y));                        
+                        poly[2*k] = x;
+                        poly[2*k+1] = y;
+                    }
+                    final int n = polygons.size();
+                    if (n == scoresBuf.length) {
+                        scoresBuf = Arrays.copyOf(scoresBuf, 2*n);
+                        areasBuf = Arrays.copyOf(areasBuf, 2*n);
                     }
                     polygons.add(poly);
                     bboxes.add(new Box2D(xmin,xmax,ymin,ymax));
                     origins.add(new Point2D(S*i,S*j));
-                    scores.add(score);
-                    areas.add(poly.area());
+                    scoresBuf[n] = score;
+                    areasBuf[n] = StarConvexIntersection.area(poly);
                 }
             }
         }
+        numAboveThreshold = nAbove;
+        scores = Arrays.copyOf(scoresBuf, polygons.size());
+        areas = Arrays.copyOf(areasBuf, polygons.size());
         score_indices = Utils.argsortDescending(scores);
         suppressed = new boolean[polygons.size()];
         
-        if (verbose)
+        if (verbose) {
+            if (grid > 1 || maximaRadius > 0)
+                log.info(String.format("Candidates prefilter kept %d of %d pixels above threshold (reduction factor %.1f)", polygons.size(), nAbove, getReductionFactor()));
             log.info(String.format("Candidates constructor took %d ms", System.currentTimeMillis() - start));
+        }
+    }
+    
+    /**
+     * Separable max filter in a (2*rad+1) square window
+     */
+    private static float[] maxFilter(final float[] p, final int w, final int h, final int rad) {
+        final float[] tmp = new float[w*h];
+        final float[] out = new float[w*h];
+        IntStream.range(0, h).parallel().forEach(y -> {
+            for (int x = 0; x < w; x++) {
+                float m = Float.NEGATIVE_INFINITY;
+                for (int xx = Math.max(0, x-rad); xx <= Math.min(w-1, x+rad); xx++)
+                    m = Math.max(m, p[xx + y*w]);
+                tmp[x + y*w] = m;
+            }
+        });
+        IntStream.range(0, h).parallel().forEach(y -> {
+            for (int x = 0; x < w; x++) {
+                float m = Float.NEGATIVE_INFINITY;
+                for (int yy = Math.max(0, y-rad); yy <= Math.min(h-1, y+rad); yy++)
+                    m = Math.max(m, tmp[x + yy*w]);
+                out[x + y*w] = m;
+            }
+        });
+        return out;
     }
     
     public void nms_v0(final double threshold) {
         final long start = System.currentTimeMillis();
         // TODO: apply same trick (bbox search window) as in c++ version
         Arrays.fill(suppressed, false);
-        winner.clear();
         final int n = polygons.size();
+        final int[] win = new int[n];
+        int nwin = 0;
         for (int ii = 0; ii < n; ii++) {
-            final int i = score_indices.get(ii);
+            final int i = score_indices[ii];
             if (suppressed[i]) continue;
-            winner.add(i);
+            win[nwin++] = i;
             final Box2D bbox = bboxes.get(i);
             for (int jj = ii+1; jj < n; jj++) {
-                final int j = score_indices.get(jj);
+                final int j = score_indices[jj];
                 if (suppressed[j]) continue;
                 if (bbox.does_intersect(bboxes.get(j))) {
                     final double area_inter = poly_intersection_area(polygons.get(i), polygons.get(j));
-                    final double overlap = area_inter / Math.min(areas.get(i)+1e-10, areas.get(j)+1e-10);
+                    final double overlap = area_inter / Math.min(areas[i]+1e-10, areas[j]+1e-10);
                     if (overlap > threshold)
                         suppressed[j] = true;
                 }
             }
         }
+        winner = Arrays.copyOf(win, nwin);
         if (verbose)
             log.info(String.format("Candidates NMS took %d ms", System.currentTimeMillis() - start));
     }
@@ -124,72 +183,81 @@ public class Candidates {
         final long start = System.currentTimeMillis();
         // TODO: apply same trick (bbox search window) as in c++ version
         Arrays.fill(suppressed, false);
-        winner.clear();
         final int n = polygons.size();
+        final int[] win = new int[n];
+        int nwin = 0;
         for (int ii = 0; ii < n; ii++) {
-            final int i = score_indices.get(ii);
+            final int i = score_indices[ii];
             if (suppressed[i]) continue;
-            winner.add(i);
+            win[nwin++] = i;
             final Box2D bbox = bboxes.get(i);
             // 
             IntStream.range(ii+1, n)
             .parallel()
             // .peek(val -> System.out.println(Thread.currentThread().getName()))
             .forEach(jj -> {
-                final int j = score_indices.get(jj);
+                final int j = score_indices[jj];
                 if (suppressed[j]) return;
                 if (bbox.does_intersect(bboxes.get(j))) {
                     final double area_inter = poly_intersection_area(polygons.get(i), polygons.get(j));
-                    final double overlap = area_inter / Math.min(areas.get(i)+1e-10, areas.get(j)+1e-10);
+                    final double overlap = area_inter / Math.min(areas[i]+1e-10, areas[j]+1e-10);
                     if (overlap > threshold)
                         suppressed[j] = true;
                 }
             });
         }
+        winner = Arrays.copyOf(win, nwin);
         if (verbose)
             log.info(String.format("Candidates NMS took %d ms", System.currentTimeMillis() - start));
     }
 
-    private double poly_intersection_area(final Path a, final Path b) {
-        final Clipper c = new DefaultClipper();
-        final Paths res = new Paths();
-        c.clear();
-        c.addPath(a, Clipper.PolyType.CLIP, true);
-        c.addPath(b, Clipper.PolyType.SUBJECT, true);
-        c.execute(Clipper.ClipType.INTERSECTION, res, Clipper.PolyFillType.NON_ZERO, Clipper.PolyFillType.NON_ZERO);
-        double area_inter = 0;
-        for (Path p : res)
-            area_inter += p.area();
-        return area_inter;
+    private double poly_intersection_area(final long[] a, final long[] b) {
+        return StarConvexIntersection.intersectionArea(a, b);
     }
     
-    public List<Integer> getWinner() {
+    /**
+     * Candidates kept by the last NMS, by descending score
+     */
+    public int[] getWinner() {
         return winner;
     }
     
-    public List<Integer> getSorted() {
+    /**
+     * All candidates, by descending score
+     */
+    public int[] getSorted() {
         return score_indices;
     }
     
+    /**
+     * Number of pixels above threshold divided by number of candidates kept by the prefilter
+     */
+    public double getReductionFactor() {
+        return (double)numAboveThreshold / Math.max(1, polygons.size());
+    }
+    
 //    public Point2D getOrigin(int i) {
 //        return origins.get(i);
 //    }
     
-//    public Path getPolygon(int i) {
-//        return polygons.get(i);
-//    }
+    /**
+     * Polygon as interleaved x,y coordinates scaled by S
+     */
+    public long[] getPolygon(int i) {
+        return polygons.get(i);
+    }
 
-//    public Box2D getBbox(int i) {
-//        return bboxes.get(i);
-//    }
+    public Box2D getBbox(int i) {
+        return bboxes.get(i);
+    }
 
-//    public float getScore(int i) {
-//        return scores.get(i);
-//    }
+    public float getScore(int i) {
+        return scores[i];
+    }
 
-//    public double getArea(int i) {
-//        return areas.get(i);
-//    }
+    public double getArea(int i) {
+        return areas[i];
+    }
     
     public PolygonRoi getPolygonRoi(int i) {
         return Utils.toPolygonRoi(polygons.get(i), S);
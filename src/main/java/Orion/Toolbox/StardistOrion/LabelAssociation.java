@@ -0,0 +1,233 @@
+package Orion.Toolbox.StardistOrion;
+
+import java.util.Arrays;
+import java.util.function.IntFunction;
+import java.util.stream.IntStream;
+
+import ij.ImageStack;
+
+import Orion.Toolbox.PairCounter;
+
+/**
+ * Association of 2D labels of consecutive slices into 3D labels.
+ *
+ * Overlaps between adjacent slices are counted in parallel with one scan per slice pair.
+ * Two labels of adjacent slices are linked if their overlap is at least minColoc times the
+ * area of the smaller one, each label being linked at most once to the previous slice and once
+ * to the next one (largest overlaps first). Linked (slice, label) nodes are merged with a
+ * union-find and numbered with consecutive 3D labels. Slices are given either as label planes
+ * of a stack, relabelled in place, or as run-length encoded planes.
+ */
+public class LabelAssociation {
+
+    private final int nSlices;
+    // areas and smallest label of each slice, areas[z][l - minLabel[z]]
+    private final int[][] areas;
+    private final int[] minLabel;
+    // node offset of each slice
+    private final int[] offset;
+    // union-find over (slice, label) nodes
+    private final int[] parent;
+    // number of 3D labels after solve
+    private int nLabels = 0;
+
+    private LabelAssociation(int[][] areas, int[] minLabel) {
+        this.nSlices = areas.length;
+        this.areas = areas;
+        this.minLabel = minLabel;
+        offset = new int[nSlices + 1];
+        for (int z = 0; z < nSlices; z++)
+            offset[z+1] = offset[z] + areas[z].length;
+        parent = new int[offset[nSlices]];
+        for (int n = 0; n < parent.length; n++) parent[n] = n;
+    }
+
+    /**
+     * Associate labels of consecutive slices and relabel stack in place
+     * Planes are replaced by 32-bit ones if the 3D labels exceed their range (255 or 65535)
+     * @param stack label planes (8-bit, 16-bit or 32-bit)
+     * @param minColoc minimal overlap, as a fraction of the smaller label area
+     * @return number of 3D labels
+     */
+    public static int associate(ImageStack stack, double minColoc) {
+        final int nSlices = stack.getSize();
+        final int size = stack.getWidth() * stack.getHeight();
+        final Object[] planes = new Object[nSlices];
+        for (int z = 0; z < nSlices; z++)
+            planes[z] = stack.getPixels(z+1);
+        
+        // label range and areas of each slice
+        final int[][] areas = new int[nSlices][];
+        final int[] minLabel = new int[nSlices];
+        IntStream.range(0, nSlices).parallel().forEach(z -> {
+            int min = Integer.MAX_VALUE, max = 0;
+            for (int i = 0; i < size; i++) {
+                final int l = label(planes[z], i);
+                if (l > 0) {
+                    min = Math.min(min, l);
+                    max = Math.max(max, l);
+                }
+            }
+            if (max == 0) min = 1;
+            minLabel[z] = min;
+            final int[] area = new int[max - min + 1];
+            for (int i = 0; i < size; i++) {
+                final int l = label(planes[z], i);
+                if (l > 0) area[l - min]++;
+            }
+            areas[z] = area;
+        });
+        
+        final LabelAssociation association = new LabelAssociation(areas, minLabel);
+        final int[][] labels3D = association.solve(minColoc, z -> {
+            final PairCounter overlaps = new PairCounter();
+            final Object p1 = planes[z], p2 = planes[z+1];
+            for (int i = 0; i < size; i++) {
+                final int l1 = label(p1, i);
+                if (l1 == 0) continue;
+                final int l2 = label(p2, i);
+                if (l2 == 0) continue;
+                overlaps.increment(l1 - minLabel[z], l2 - minLabel[z+1]);
+            }
+            return overlaps;
+        });
+        final boolean widen = nSlices > 0 && association.nLabels > maxValue(planes[0]);
+        IntStream.range(0, nSlices).parallel().forEach(z -> {
+            final float[] wide = widen ? new float[size] : null;
+            for (int i = 0; i < size; i++) {
+                final int l = label(planes[z], i);
+                if (l == 0) continue;
+                if (widen) wide[i] = labels3D[z][l - minLabel[z]];
+                else setLabel(planes[z], i, labels3D[z][l - minLabel[z]]);
+            }
+            if (widen) planes[z] = wide;
+        });
+        if (widen)
+            for (int z = 0; z < nSlices; z++)
+                stack.setPixels(planes[z], z+1);
+        return association.nLabels;
+    }
+
+    /**
+     * Associate labels of consecutive run-length encoded slices
+     * @param slices labels 1..maxLabel of each slice
+     * @param minColoc minimal overlap, as a fraction of the smaller label area
+     * @return 3D label of each (slice, label-1), 3D labels are 1..max
+     */
+    public static int[][] associate(LabelRuns[] slices, double minColoc) {
+        final int nSlices = slices.length;
+        final int[][] areas = new int[nSlices][];
+        final int[] minLabel = new int[nSlices];
+        IntStream.range(0, nSlices).parallel().forEach(z -> {
+            areas[z] = slices[z].areas();
+            minLabel[z] = 1;
+        });
+        return new LabelAssociation(areas, minLabel).solve(minColoc, z -> {
+            // merge runs of the same rows
+            final PairCounter overlaps = new PairCounter();
+            final LabelRuns s1 = slices[z], s2 = slices[z+1];
+            for (int y = 0; y < Math.min(s1.height, s2.height); y++) {
+                int r1 = s1.rowStart[y], r2 = s2.rowStart[y];
+                final int e1 = s1.rowStart[y+1], e2 = s2.rowStart[y+1];
+                while (r1 < e1 && r2 < e2) {
+                    final int ov = Math.min(s1.x1[r1], s2.x1[r2]) - Math.max(s1.x0[r1], s2.x0[r2]);
+                    if (ov > 0) overlaps.add(s1.label[r1] - 1, s2.label[r2] - 1, ov);
+                    if (s1.x1[r1] < s2.x1[r2]) r1++;
+                    else r2++;
+                }
+            }
+            return overlaps;
+        });
+    }
+
+    /**
+     * Link adjacent slices, merge links and number 3D labels by order of first appearance
+     * @return 3D label of each (slice, label - minLabel)
+     */
+    private int[][] solve(double minColoc, IntFunction<PairCounter> overlaps) {
+        final long[][] links = new long[Math.max(0, nSlices-1)][];
+        IntStream.range(0, nSlices-1).parallel().forEach(z -> links[z] = link(z, overlaps.apply(z), minColoc));
+        for (int z = 0; z < nSlices-1; z++)
+            for (long l : links[z])
+                union((int)(l >>> 32), (int)l);
+
+        final int[] rootLabel = new int[parent.length];
+        final int[][] labels3D = new int[nSlices][];
+        for (int z = 0; z < nSlices; z++) {
+            labels3D[z] = new int[areas[z].length];
+            for (int k = 0; k < areas[z].length; k++) {
+                if (areas[z][k] == 0) continue;
+                final int root = find(offset[z] + k);
+                if (rootLabel[root] == 0) rootLabel[root] = ++nLabels;
+                labels3D[z][k] = rootLabel[root];
+            }
+        }
+        return labels3D;
+    }
+
+    /**
+     * Links of slice z with slice z+1 as packed (node z, node z+1)
+     */
+    private long[] link(int z, PairCounter overlaps, double minColoc) {
+        // candidate links, largest overlaps first
+        final int n = overlaps.size();
+        final long[] sorted = new long[n];
+        int nc = 0;
+        for (int e = 0; e < overlaps.capacity(); e++) {
+            final int count = overlaps.count(e);
+            if (count == 0) continue;
+            final int k1 = (int)(overlaps.key(e) >>> 32), k2 = (int)overlaps.key(e);
+            if (count < minColoc * Math.min(areas[z][k1], areas[z+1][k2])) continue;
+            sorted[nc++] = ((long)(Integer.MAX_VALUE - count) << 32) | e;
+        }
+        Arrays.sort(sorted, 0, nc);
+        final boolean[] used1 = new boolean[areas[z].length];
+        final boolean[] used2 = new boolean[areas[z+1].length];
+        final long[] res = new long[nc];
+        int nl = 0;
+        for (int c = 0; c < nc; c++) {
+            final int e = (int)sorted[c];
+            final int k1 = (int)(overlaps.key(e) >>> 32), k2 = (int)overlaps.key(e);
+            if (used1[k1] || used2[k2]) continue;
+            used1[k1] = true;
+            used2[k2] = true;
+            res[nl++] = ((long)(offset[z] + k1) << 32) | (offset[z+1] + k2);
+        }
+        return Arrays.copyOf(res, nl);
+    }
+
+    private int find(int n) {
+        while (parent[n] != n) {
+            parent[n] = parent[parent[n]];
+            n = parent[n];
+        }
+        return n;
+    }
+
+    private void union(int a, int b) {
+        final int ra = find(a), rb = find(b);
+        if (ra != rb) {
+            // keep the root in the lowest slice
+            if (ra < rb) parent[rb] = ra;
+            else parent[ra] = rb;
+        }
+    }
+
+    private static int label(Object pixels, int i) {
+        if (pixels instanceof float[]) return (int)((float[])pixels)[i];
+        if (pixels instanceof short[]) return ((short[])pixels)[i] & 0xffff;
+        return ((byte[])pixels)[i] & 0xff;
+    }
+
+    private static int maxValue(Object pixels) {
+        if (pixels instanceof float[]) return Integer.MAX_VALUE;
+        if (pixels instanceof short[]) return 65535;
+        return 255;
+    }
+
+    private static void setLabel(Object pixels, int i, int label) {
+        if (pixels instanceof float[]) ((float[])pixels)[i] = label;
+        else if (pixels instanceof short[]) ((short[])pixels)[i] = (short)label;
+        else ((byte[])pixels)[i] = (byte)label;
+    }
+}
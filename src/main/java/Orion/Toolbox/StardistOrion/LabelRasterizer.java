@@ -0,0 +1,99 @@
+package Orion.Toolbox.StardistOrion;
+
+import java.util.stream.IntStream;
+
+/**
+ * Scanline rasterizer of StarDist polygons into a 32-bit label plane.
+ *
+ * Polygons are filled straight from their integer coordinates (scaled by Candidates.S),
+ * a pixel (x,y) is filled if the point (S*x, S*y) is inside the polygon, as ImageProcessor.fill
+ * does with the 0.5 offset PolygonRoi. Horizontal bands of the plane are filled in parallel.
+ */
+public class LabelRasterizer {
+
+    // rows filled by one task
+    private static final int BAND_HEIGHT = 32;
+
+    /**
+     * Fill winners into plane, winner[r] gets label firstLabel + r.
+     * Winners are ordered by descending score and a pixel keeps the first label written into it:
+     * the plane is the score-ordered z-buffer (0 = free), highest score wins in case of overlaps.
+     * @param polygons
+     * @param winner candidates indices by descending score
+     * @param plane label plane, row-major
+     * @param width
+     * @param height
+     * @param firstLabel
+     */
+    public static void fill(final Candidates polygons, final int[] winner, final int[] plane, final int width, final int height, final int firstLabel) {
+        fill(polygons, winner, plane, width, height, firstLabel, 1, 1);
+    }
+
+    /**
+     * Fill winners into a plane whose pixels are fx (fy) times larger than the pixels of the polygons,
+     * pixel centers are mapped analytically to the polygons grid, no resize of a label image is needed
+     * @param fx polygons image width / plane width
+     * @param fy polygons image height / plane height
+     */
+    public static void fill(final Candidates polygons, final int[] winner, final int[] plane, final int width, final int height, final int firstLabel,
+            final double fx, final double fy) {
+        final long S = Candidates.S;
+        // pixel (x,y) is sampled at (ax*x + bx, ay*y + by) in polygons coordinates
+        final double ax = S*fx, bx = S*(0.5*fx - 0.5);
+        final double ay = S*fy, by = S*(0.5*fy - 0.5);
+        final int nBands = (height + BAND_HEIGHT - 1) / BAND_HEIGHT;
+        IntStream.range(0, nBands).parallel().forEach(band -> {
+            final int row0 = band * BAND_HEIGHT;
+            final int row1 = Math.min(height, row0 + BAND_HEIGHT);
+            double[] xs = new double[0];
+            for (int r = 0; r < winner.length; r++) {
+                final Box2D bbox = polygons.getBbox(winner[r]);
+                // rows sampled in [ymin, ymax)
+                final int pr0 = (int)Math.max(row0, Math.ceil((bbox.ymin - by) / ay));
+                final int pr1 = (int)Math.min(row1, Math.ceil((bbox.ymax - by) / ay));
+                if (pr0 >= pr1) continue;
+                final long[] poly = polygons.getPolygon(winner[r]);
+                if (xs.length < poly.length/2) xs = new double[poly.length/2];
+                fillRows(poly, pr0, pr1, ax, bx, ay, by, plane, width, firstLabel + r, xs);
+            }
+        });
+    }
+
+    /**
+     * Scanline fill of rows [row0, row1) of one polygon, only free pixels are written
+     */
+    private static void fillRows(final long[] poly, final int row0, final int row1, final double ax, final double bx, final double ay, final double by,
+            final int[] plane, final int width, final int label, final double[] xs) {
+        final int n = poly.length/2;
+        for (int row = row0; row < row1; row++) {
+            final double y = ay*row + by;
+            // crossings of the scanline, edges are half-open [ymin, ymax)
+            int nx = 0;
+            for (int i = 0, j = n-1; i < n; j = i++) {
+                final long yi = poly[2*i+1], yj = poly[2*j+1];
+                if ((yi <= y) != (yj <= y)) {
+                    final long xi = poly[2*i], xj = poly[2*j];
+                    xs[nx++] = xi + (y - yi) * (xj - xi) / (yj - yi);
+                }
+            }
+            for (int u = 1; u < nx; u++) {
+                final double v = xs[u];
+                int w = u-1;
+                while (w >= 0 && xs[w] > v) {
+                    xs[w+1] = xs[w];
+                    w--;
+                }
+                xs[w+1] = v;
+            }
+            // pixels sampled in [xs[k], xs[k+1])
+            final int off = row * width;
+            for (int k = 0; k+1 < nx; k += 2) {
+                final int x0 = (int)Math.max(0, Math.ceil((xs[k] - bx) / ax));
+                final int x1 = (int)Math.min(width, Math.ceil((xs[k+1] - bx) / ax));
+                for (int x = x0; x < x1; x++)
+                    if (plane[off + x] == 0) plane[off + x] = label;
+            }
+        }
+    }
+
+}
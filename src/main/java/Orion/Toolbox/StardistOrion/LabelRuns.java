@@ -0,0 +1,137 @@
+package Orion.Toolbox.StardistOrion;
+
+import java.util.stream.IntStream;
+
+import mcib3d.geom2.Object3DInt;
+import mcib3d.geom2.Objects3DIntPopulation;
+import mcib3d.geom2.VoxelInt;
+
+/**
+ * Run-length encoded label plane: for each row, runs [x0, x1) of constant non-zero label
+ */
+public class LabelRuns {
+
+    final int width, height;
+    final int maxLabel;
+    // runs of row y are rowStart[y] .. rowStart[y+1]-1
+    final int[] rowStart;
+    final int[] x0, x1, label;
+
+    /**
+     * Encode a label plane with labels 1..maxLabel
+     * @param plane row-major labels
+     * @param width
+     * @param height
+     */
+    public LabelRuns(int[] plane, int width, int height) {
+        this.width = width;
+        this.height = height;
+        int n = 0, max = 0;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0, i = y*width; x < width; x++, i++) {
+                final int l = plane[i];
+                if (l != 0 && (x == 0 || plane[i-1] != l)) n++;
+                max = Math.max(max, l);
+            }
+        }
+        maxLabel = max;
+        rowStart = new int[height + 1];
+        x0 = new int[n];
+        x1 = new int[n];
+        label = new int[n];
+        int r = 0;
+        for (int y = 0; y < height; y++) {
+            rowStart[y] = r;
+            for (int x = 0, i = y*width; x < width; x++, i++) {
+                final int l = plane[i];
+                if (l == 0) continue;
+                if (x == 0 || plane[i-1] != l) {
+                    x0[r] = x;
+                    label[r] = l;
+                    r++;
+                }
+                x1[r-1] = x + 1;
+            }
+        }
+        rowStart[height] = r;
+    }
+
+    /**
+     * Area of labels 1..maxLabel, at index label-1
+     */
+    public int[] areas() {
+        final int[] areas = new int[maxLabel];
+        for (int r = 0; r < label.length; r++)
+            areas[label[r]-1] += x1[r] - x0[r];
+        return areas;
+    }
+
+    /**
+     * Write the runs into a label plane
+     * @param pixels row-major plane, width*height
+     * @param labelMap new label of each label-1 (e.g. 3D labels), 0 = not drawn
+     */
+    public void draw(float[] pixels, int[] labelMap) {
+        for (int y = 0; y < height; y++) {
+            for (int r = rowStart[y]; r < rowStart[y+1]; r++) {
+                final int l = labelMap[label[r]-1];
+                if (l == 0) continue;
+                for (int x = y*width + x0[r]; x < y*width + x1[r]; x++)
+                    pixels[x] = l;
+            }
+        }
+    }
+
+    /**
+     * Build 3D objects from the runs of each slice
+     * @param slices runs of each slice
+     * @param labels3D 3D label of each (slice, label-1), 0 = dropped
+     * @param nLabels number of 3D labels
+     * @return population with objects labelled 1..nLabels
+     */
+    public static Objects3DIntPopulation toPopulation(LabelRuns[] slices, int[][] labels3D, int nLabels) {
+        // runs of each 3D label as (slice, run) pairs, grouped by label
+        final int[] start = new int[nLabels + 2];
+        for (int z = 0; z < slices.length; z++)
+            for (int r = 0; r < slices[z].label.length; r++)
+                start[labels3D[z][slices[z].label[r]-1] + 1]++;
+        for (int l = 1; l < start.length; l++)
+            start[l] += start[l-1];
+        final int[] pos = start.clone();
+        final long[] runs = new long[start[nLabels + 1]];
+        for (int z = 0; z < slices.length; z++)
+            for (int r = 0; r < slices[z].label.length; r++)
+                runs[pos[labels3D[z][slices[z].label[r]-1]]++] = ((long)z << 32) | r;
+
+        final Object3DInt[] objects = new Object3DInt[nLabels];
+        IntStream.rangeClosed(1, nLabels).parallel().forEach(l -> {
+            final Object3DInt obj = new Object3DInt();
+            obj.setLabel(l);
+            for (int k = start[l]; k < start[l+1]; k++) {
+                final int z = (int)(runs[k] >>> 32), r = (int)runs[k];
+                final LabelRuns s = slices[z];
+                final int y = s.row(r);
+                for (int x = s.x0[r]; x < s.x1[r]; x++)
+                    obj.addVoxel(new VoxelInt(x, y, z, l));
+            }
+            objects[l-1] = obj;
+        });
+        final Objects3DIntPopulation pop = new Objects3DIntPopulation();
+        for (Object3DInt obj : objects)
+            pop.addObject(obj);
+        return pop;
+    }
+
+    /**
+     * Row of run r
+     */
+    private int row(int r) {
+        int lo = 0, hi = height - 1;
+        while (lo < hi) {
+            final int mid = (lo + hi + 1) >>> 1;
+            if (rowStart[mid] <= r) lo = mid;
+            else hi = mid - 1;
+        }
+        return lo;
+    }
+}
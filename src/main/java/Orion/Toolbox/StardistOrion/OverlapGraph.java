@@ -0,0 +1,143 @@
+package Orion.Toolbox.StardistOrion;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Overlaps between all candidates, computed once to run the NMS for many thresholds.
+ *
+ * Candidates are ranked by descending score, so the candidates above a probability threshold
+ * are a prefix of the ranks. For each rank the graph stores the lower ranked candidates it
+ * overlaps with (CSR arrays, sorted by rank) and the overlap inter / min(area), as in Candidates.nms.
+ * Pairs are found with a sweep over the bounding boxes sorted by xmin and computed in parallel.
+ */
+public class OverlapGraph {
+
+    private final Candidates candidates;
+    // candidate indices by descending score
+    private final int[] order;
+    private final float[] scores;
+    // edges of rank r: start[r] .. start[r+1]-1
+    private final int[] start;
+    private final int[] neighbor;
+    private final double[] overlap;
+
+    public OverlapGraph(Candidates candidates) {
+        this.candidates = candidates;
+        order = candidates.getSorted();
+        final int n = order.length;
+        scores = new float[n];
+        final long[] xmin = new long[n];
+        for (int r = 0; r < n; r++) {
+            scores[r] = candidates.getScore(order[r]);
+            xmin[r] = candidates.getBbox(order[r]).xmin;
+        }
+        // ranks sorted by bbox xmin
+        final int[] byX = IntStream.range(0, n).boxed().sorted((a, b) -> Long.compare(xmin[a], xmin[b])).mapToInt(Integer::intValue).toArray();
+
+        // overlapping pairs found from each position of the sweep, as (low rank, high rank)
+        final long[][] pairs = new long[n][];
+        final double[][] values = new double[n][];
+        IntStream.range(0, n).parallel().forEach(u -> {
+            final int ru = byX[u];
+            final Box2D bu = candidates.getBbox(order[ru]);
+            long[] p = new long[8];
+            double[] v = new double[8];
+            int np = 0;
+            for (int w = u+1; w < n && xmin[byX[w]] <= bu.xmax; w++) {
+                final int rw = byX[w];
+                final Box2D bw = candidates.getBbox(order[rw]);
+                if (!bu.does_intersect(bw)) continue;
+                final int i = order[ru], j = order[rw];
+                final double inter = StarConvexIntersection.intersectionArea(candidates.getPolygon(i), candidates.getPolygon(j));
+                final double ov = inter / Math.min(candidates.getArea(i)+1e-10, candidates.getArea(j)+1e-10);
+                if (ov <= 0) continue;
+                if (np == p.length) {
+                    p = Arrays.copyOf(p, 2*np);
+                    v = Arrays.copyOf(v, 2*np);
+                }
+                p[np] = ((long)Math.min(ru, rw) << 32) | Math.max(ru, rw);
+                v[np++] = ov;
+            }
+            pairs[u] = Arrays.copyOf(p, np);
+            values[u] = Arrays.copyOf(v, np);
+        });
+
+        start = new int[n + 1];
+        for (long[] p : pairs)
+            for (long e : p) start[(int)(e >>> 32) + 1]++;
+        for (int r = 0; r < n; r++)
+            start[r+1] += start[r];
+        neighbor = new int[start[n]];
+        overlap = new double[start[n]];
+        final int[] pos = Arrays.copyOf(start, n);
+        for (int u = 0; u < n; u++) {
+            for (int k = 0; k < pairs[u].length; k++) {
+                final int r = (int)(pairs[u][k] >>> 32);
+                neighbor[pos[r]] = (int)pairs[u][k];
+                overlap[pos[r]++] = values[u][k];
+            }
+        }
+        // neighbours by rank, the NMS can stop at the probability cut
+        IntStream.range(0, n).parallel().forEach(r -> sortEdges(start[r], start[r+1]));
+    }
+
+    private void sortEdges(int from, int to) {
+        for (int u = from + 1; u < to; u++) {
+            final int nb = neighbor[u];
+            final double ov = overlap[u];
+            int w = u - 1;
+            while (w >= from && neighbor[w] > nb) {
+                neighbor[w+1] = neighbor[w];
+                overlap[w+1] = overlap[w];
+                w--;
+            }
+            neighbor[w+1] = nb;
+            overlap[w+1] = ov;
+        }
+    }
+
+    /**
+     * Number of candidates with score > probThresh
+     */
+    public int count(double probThresh) {
+        int lo = 0, hi = scores.length;
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (scores[mid] > probThresh) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * Number of overlapping pairs
+     */
+    public int edges() {
+        return neighbor.length;
+    }
+
+    /**
+     * Same winners as Candidates.nms(nmsThresh) on the candidates with score > probThresh
+     * @param probThresh at least the threshold the candidates were built with
+     * @param nmsThresh
+     * @return winner candidate indices by descending score
+     */
+    public int[] nms(double probThresh, double nmsThresh) {
+        final int k = count(probThresh);
+        final boolean[] suppressed = new boolean[k];
+        final int[] win = new int[k];
+        int nwin = 0;
+        for (int r = 0; r < k; r++) {
+            if (suppressed[r]) continue;
+            win[nwin++] = order[r];
+            for (int e = start[r]; e < start[r+1] && neighbor[e] < k; e++)
+                if (overlap[e] > nmsThresh) suppressed[neighbor[e]] = true;
+        }
+        return Arrays.copyOf(win, nwin);
+    }
+
+    public Candidates getCandidates() {
+        return candidates;
+    }
+}
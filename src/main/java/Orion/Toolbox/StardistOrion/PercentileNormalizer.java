@@ -0,0 +1,134 @@
+package Orion.Toolbox.StardistOrion;
+
+import java.util.stream.IntStream;
+
+/**
+ * Percentile normalization of 8-bit, 16-bit and 32-bit planes, as done by CSBDeep before inference.
+ *
+ * Percentiles are read from a histogram built in parallel: one pass with exact bins for 8-bit and
+ * 16-bit planes, a min/max pass and 65536 bins interpolated linearly for 32-bit planes.
+ * Normalized values (v - low) / (high - low) are written, not clipped, into a float buffer.
+ */
+public class PercentileNormalizer {
+
+    private static final int FLOAT_BINS = 1 << 16;
+    // pixels counted by one task
+    private static final int CHUNK = 1 << 16;
+
+    /**
+     * Check that planes can be normalized here (no RGB)
+     */
+    public static boolean isSupported(Object[] planes) {
+        for (Object p : planes)
+            if (!(p instanceof byte[] || p instanceof short[] || p instanceof float[])) return false;
+        return true;
+    }
+
+    /**
+     * Percentiles of the pixels of all planes, ranks interpolated as numpy.percentile
+     * @param planes pixel arrays of the same type and size
+     * @param pcts percentiles in [0, 100]
+     * @return values of the percentiles
+     */
+    public static double[] percentiles(final Object[] planes, final double... pcts) {
+        final int size = length(planes[0]);
+        final int nChunks = (size + CHUNK - 1) / CHUNK;
+        final int nTasks = planes.length * nChunks;
+        // bins: value v in bin floor((v - min) * scale)
+        final double min, scale;
+        final int nBins;
+        if (planes[0] instanceof byte[]) {
+            min = 0; scale = 1; nBins = 256;
+        } else if (planes[0] instanceof short[]) {
+            min = 0; scale = 1; nBins = 65536;
+        } else {
+            final double[] range = IntStream.range(0, nTasks).parallel().mapToObj(k -> {
+                final float[] p = (float[])planes[k / nChunks];
+                final int i0 = (k % nChunks) * CHUNK, i1 = Math.min(size, i0 + CHUNK);
+                float lo = Float.POSITIVE_INFINITY, hi = Float.NEGATIVE_INFINITY;
+                for (int i = i0; i < i1; i++) {
+                    lo = Math.min(lo, p[i]);
+                    hi = Math.max(hi, p[i]);
+                }
+                return new double[]{lo, hi};
+            }).reduce(new double[]{Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY},
+                    (a, b) -> new double[]{Math.min(a[0], b[0]), Math.max(a[1], b[1])});
+            min = range[0];
+            scale = (range[1] > range[0]) ? FLOAT_BINS / (range[1] - range[0]) : 0;
+            nBins = FLOAT_BINS;
+        }
+
+        final long[] hist = IntStream.range(0, nTasks).parallel().collect(() -> new long[nBins], (h, k) -> {
+            final Object p = planes[k / nChunks];
+            final int i0 = (k % nChunks) * CHUNK, i1 = Math.min(size, i0 + CHUNK);
+            if (p instanceof byte[]) {
+                final byte[] b = (byte[])p;
+                for (int i = i0; i < i1; i++) h[b[i] & 0xff]++;
+            } else if (p instanceof short[]) {
+                final short[] s = (short[])p;
+                for (int i = i0; i < i1; i++) h[s[i] & 0xffff]++;
+            } else {
+                final float[] f = (float[])p;
+                for (int i = i0; i < i1; i++) h[Math.min(nBins - 1, (int)((f[i] - min) * scale))]++;
+            }
+        }, (a, b) -> {
+            for (int i = 0; i < nBins; i++) a[i] += b[i];
+        });
+
+        final long n = (long)size * planes.length;
+        final double[] res = new double[pcts.length];
+        for (int q = 0; q < pcts.length; q++) {
+            final double rank = pcts[q] / 100 * (n - 1);
+            final long r0 = (long)Math.floor(rank);
+            final double v0 = orderStatistic(hist, r0, min, scale, planes[0] instanceof float[]);
+            final double v1 = orderStatistic(hist, Math.min(n - 1, r0 + 1), min, scale, planes[0] instanceof float[]);
+            res[q] = v0 + (rank - r0) * (v1 - v0);
+        }
+        return res;
+    }
+
+    /**
+     * Value of rank r (0-based), spread uniformly within a float bin
+     */
+    private static double orderStatistic(long[] hist, long r, double min, double scale, boolean isFloat) {
+        long cum = 0;
+        for (int b = 0; b < hist.length; b++) {
+            if (cum + hist[b] > r) {
+                if (!isFloat) return b;
+                if (scale == 0) return min;
+                return min + (b + (r - cum + 0.5) / hist[b]) / scale;
+            }
+            cum += hist[b];
+        }
+        return isFloat ? min + ((scale > 0) ? hist.length / scale : 0) : hist.length - 1;
+    }
+
+    /**
+     * Normalize plane into out, (v - low) / (high - low)
+     */
+    public static void normalize(final Object plane, final float[] out, final double low, final double high) {
+        final float lo = (float)low;
+        final float inv = (float)(1 / Math.max(high - low, 1e-20));
+        final int size = length(plane);
+        final int nChunks = (size + CHUNK - 1) / CHUNK;
+        IntStream.range(0, nChunks).parallel().forEach(k -> {
+            final int i0 = k * CHUNK, i1 = Math.min(size, i0 + CHUNK);
+            if (plane instanceof byte[]) {
+                final byte[] b = (byte[])plane;
+                for (int i = i0; i < i1; i++) out[i] = ((b[i] & 0xff) - lo) * inv;
+            } else if (plane instanceof short[]) {
+                final short[] s = (short[])plane;
+                for (int i = i0; i < i1; i++) out[i] = ((s[i] & 0xffff) - lo) * inv;
+            } else {
+                final float[] f = (float[])plane;
+                for (int i = i0; i < i1; i++) out[i] = (f[i] - lo) * inv;
+            }
+        });
+    }
+
+    private static int length(Object plane) {
+        if (plane instanceof byte[]) return ((byte[])plane).length;
+        if (plane instanceof short[]) return ((short[])plane).length;
+        return ((float[])plane).length;
+    }
+}
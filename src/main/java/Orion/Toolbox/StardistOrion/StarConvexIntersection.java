@@ -0,0 +1,286 @@
+package Orion.Toolbox.StardistOrion;
+
+import java.util.Random;
+
+import de.lighti.clipper.Clipper;
+import de.lighti.clipper.DefaultClipper;
+import de.lighti.clipper.Path;
+import de.lighti.clipper.Paths;
+import de.lighti.clipper.Point.LongPoint;
+
+/**
+ * Exact intersection area of two StarDist polygons.
+ *
+ * Polygons are given as interleaved integer coordinates {x0, y0, x1, y1, ...} on the
+ * subpixel grid of Candidates (pixel coordinates scaled by S). Star-convex polygons built
+ * from ordered rays are simple and counter-clockwise, so the intersection area is
+ * 1/2 * sum(x dy - y dx) over the parts of the edges of a lying inside b and the parts
+ * of the edges of b lying inside a. Shared edges are counted once if they have the same
+ * direction, never if they are opposite (polygons touching from outside).
+ *
+ * Replaces the general Clipper boolean used by the NMS: no Clipper, Path or result allocation,
+ * only per-thread scratch buffers that grow with the number of rays.
+ */
+public class StarConvexIntersection {
+
+    private static final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(Scratch::new);
+
+    private static class Scratch {
+        // split parameters along the current edge
+        double[] ts = new double[0];
+        // collinear overlaps along the current edge
+        double[] ovLo = new double[0];
+        double[] ovHi = new double[0];
+        boolean[] ovSame = new boolean[0];
+
+        void ensure(int nEdges) {
+            if (ovLo.length < nEdges) {
+                ts = new double[2*nEdges + 2];
+                ovLo = new double[nEdges];
+                ovHi = new double[nEdges];
+                ovSame = new boolean[nEdges];
+            }
+        }
+    }
+
+    /**
+     * Signed area of a polygon (positive if counter-clockwise)
+     * @param p interleaved coordinates
+     * @return
+     */
+    public static double area(long[] p) {
+        final int n = p.length/2;
+        long a = 0;
+        for (int i = 0, j = n-1; i < n; j = i++)
+            a += p[2*j]*p[2*i+1] - p[2*i]*p[2*j+1];
+        return 0.5*a;
+    }
+
+    /**
+     * Intersection area of two counter-clockwise simple polygons
+     * @param a interleaved coordinates of first polygon
+     * @param b interleaved coordinates of second polygon
+     * @return
+     */
+    public static double intersectionArea(long[] a, long[] b) {
+        final Scratch s = scratch.get();
+        s.ensure(Math.max(a.length, b.length)/2);
+        // express coordinates relative to first vertex of a to keep cross products small
+        final long ox = a[0], oy = a[1];
+        final double sum = boundaryInside(a, b, true, ox, oy, s) + boundaryInside(b, a, false, ox, oy, s);
+        return Math.max(0, 0.5*sum);
+    }
+
+    /**
+     * Sum of (x dy - y dx) over the parts of the edges of p lying inside q
+     * @param sameDirectionShared count edge parts shared with q in the same direction
+     */
+    private static double boundaryInside(long[] p, long[] q, boolean sameDirectionShared, long ox, long oy, Scratch s) {
+        final int np = p.length/2;
+        final int nq = q.length/2;
+        final double[] ts = s.ts;
+        double sum = 0;
+        long qxmin = Long.MAX_VALUE, qxmax = Long.MIN_VALUE, qymin = Long.MAX_VALUE, qymax = Long.MIN_VALUE;
+        for (int k = 0; k < nq; k++) {
+            qxmin = Math.min(qxmin, q[2*k]);
+            qxmax = Math.max(qxmax, q[2*k]);
+            qymin = Math.min(qymin, q[2*k+1]);
+            qymax = Math.max(qymax, q[2*k+1]);
+        }
+        // inside status at the end of the previous edge, if it did not touch q there
+        boolean carried = false, known = false;
+        for (int i = 0; i < np; i++) {
+            final int i1 = (i+1 == np) ? 0 : i+1;
+            final long px = p[2*i], py = p[2*i+1];
+            final long dx = p[2*i1] - px, dy = p[2*i1+1] - py;
+            if (dx == 0 && dy == 0) continue;
+            final long exmin = Math.min(px, px+dx), exmax = Math.max(px, px+dx);
+            final long eymin = Math.min(py, py+dy), eymax = Math.max(py, py+dy);
+            if (exmax < qxmin || exmin > qxmax || eymax < qymin || eymin > qymax) {
+                // edge outside bounding box of q
+                carried = false;
+                known = true;
+                continue;
+            }
+
+            int nt = 0, nov = 0;
+            // only proper crossings: inside/outside status flips at each split point
+            boolean proper = true;
+            boolean touchStart = false, touchEnd = false;
+            ts[nt++] = 0;
+            ts[nt++] = 1;
+            for (int k = 0, k0 = nq-1; k < nq; k0 = k++) {
+                final long rx = q[2*k0], ry = q[2*k0+1];
+                final long sx = q[2*k], sy = q[2*k+1];
+                if (Math.max(rx, sx) < exmin || Math.min(rx, sx) > exmax || Math.max(ry, sy) < eymin || Math.min(ry, sy) > eymax) continue;
+                final long ex = sx - rx, ey = sy - ry;
+                if (ex == 0 && ey == 0) continue;
+                final long wx = rx - px, wy = ry - py;
+                long den = dx*ey - dy*ex;
+                if (den == 0) {
+                    // parallel edges, only collinear ones matter
+                    if (wx*dy - wy*dx != 0) continue;
+                    final double dd = dx*dx + dy*dy;
+                    final double t0 = (wx*dx + wy*dy) / dd;
+                    final double t1 = ((sx-px)*dx + (sy-py)*dy) / dd;
+                    final double lo = Math.max(0, Math.min(t0, t1));
+                    final double hi = Math.min(1, Math.max(t0, t1));
+                    if (hi > lo) {
+                        ts[nt++] = lo;
+                        ts[nt++] = hi;
+                        s.ovLo[nov] = lo;
+                        s.ovHi[nov] = hi;
+                        s.ovSame[nov] = dx*ex + dy*ey > 0;
+                        nov++;
+                        proper = false;
+                    }
+                    continue;
+                }
+                long tn = wx*ey - wy*ex;
+                long un = wx*dy - wy*dx;
+                if (den < 0) {
+                    den = -den; tn = -tn; un = -un;
+                }
+                if (un < 0 || un > den || tn < 0 || tn > den) continue;
+                if (tn == 0 || tn == den) {
+                    if (tn == 0) touchStart = true;
+                    else touchEnd = true;
+                    continue;
+                }
+                if (un == 0 || un == den) proper = false;
+                ts[nt++] = (double)tn / den;
+            }
+
+            // insertion sort, few split points per edge
+            for (int u = 1; u < nt; u++) {
+                final double v = ts[u];
+                int w = u-1;
+                while (w >= 0 && ts[w] > v) {
+                    ts[w+1] = ts[w];
+                    w--;
+                }
+                ts[w+1] = v;
+            }
+
+            double inside = 0;
+            if (proper) {
+                boolean in = (known && !touchStart) ? carried : contains(q, px + 0.5*ts[1]*dx, py + 0.5*ts[1]*dy);
+                for (int u = 0; u < nt-1; u++) {
+                    if (in) inside += ts[u+1] - ts[u];
+                    if (u < nt-2) in = !in;
+                }
+                carried = in;
+                known = !touchEnd;
+            } else {
+                // touching or shared boundary: classify each part on its own
+                for (int u = 0; u < nt-1; u++) {
+                    final double t0 = ts[u], t1 = ts[u+1];
+                    if (t1 <= t0) continue;
+                    final double tm = 0.5*(t0 + t1);
+                    int ov = -1;
+                    for (int w = 0; w < nov && ov < 0; w++)
+                        if (s.ovLo[w] < tm && tm < s.ovHi[w]) ov = w;
+                    if (ov >= 0) {
+                        if (sameDirectionShared && s.ovSame[ov]) inside += t1 - t0;
+                    } else if (contains(q, px + tm*dx, py + tm*dy)) {
+                        inside += t1 - t0;
+                    }
+                }
+                known = false;
+            }
+            if (inside > 0) {
+                final long ax = px - ox, ay = py - oy;
+                // cross(P + t0*D, P + t1*D) = (t1 - t0) * cross(P, D)
+                sum += inside * (double)(ax*dy - ay*dx);
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Even-odd test, point is never on the boundary of q when called from boundaryInside
+     */
+    private static boolean contains(long[] q, double x, double y) {
+        final int n = q.length/2;
+        boolean c = false;
+        for (int i = 0, j = n-1; i < n; j = i++) {
+            final double yi = q[2*i+1], yj = q[2*j+1];
+            if ((yi > y) != (yj > y)) {
+                final double xi = q[2*i], xj = q[2*j];
+                if (x < xi + (y - yi) * (xj - xi) / (yj - yi)) c = !c;
+            }
+        }
+        return c;
+    }
+
+    /**
+     * Reference intersection area computed with Clipper
+     */
+    static double clipperIntersectionArea(long[] a, long[] b) {
+        final Clipper c = new DefaultClipper();
+        final Paths res = new Paths();
+        c.addPath(toPath(a), Clipper.PolyType.CLIP, true);
+        c.addPath(toPath(b), Clipper.PolyType.SUBJECT, true);
+        c.execute(Clipper.ClipType.INTERSECTION, res, Clipper.PolyFillType.NON_ZERO, Clipper.PolyFillType.NON_ZERO);
+        double area_inter = 0;
+        for (Path p : res)
+            area_inter += p.area();
+        return area_inter;
+    }
+
+    static Path toPath(long[] p) {
+        final Path path = new Path();
+        for (int i = 0; i < p.length/2; i++)
+            path.add(new LongPoint(p[2*i], p[2*i+1]));
+        return path;
+    }
+
+    /**
+     * Random star-convex polygon, same construction as Candidates
+     */
+    static long[] randomPolygon(Random rnd, int nrays, double cx, double cy, double rmax, long S) {
+        final double[] phis = Utils.rayAngles(nrays);
+        final long[] p = new long[2*nrays];
+        final double r0 = rmax * (0.3 + 0.7*rnd.nextDouble());
+        for (int k = 0; k < nrays; k++) {
+            final double d = r0 * (0.5 + 0.5*rnd.nextDouble());
+            p[2*k] = Math.round(S * (cx + d * Math.cos(phis[k])));
+            p[2*k+1] = Math.round(S * (cy + d * Math.sin(phis[k])));
+        }
+        return p;
+    }
+
+    // largest error to Clipper accepted by the validation, relative to the smaller polygon area
+    private static final double MAX_RELATIVE_ERROR = 1e-6;
+
+    /**
+     * Validation against Clipper on randomized polygon pairs, fails with an IllegalStateException
+     * if the error of a pair exceeds MAX_RELATIVE_ERROR of the smaller polygon area
+     */
+    public static void main(final String... args) {
+        final int nPairs = (args.length > 0) ? Integer.parseInt(args[0]) : 100000;
+        final Random rnd = new Random(42);
+        double maxAbsErr = 0, maxRelErr = 0;
+        long tKernel = 0, tClipper = 0;
+        for (int n = 0; n < nPairs; n++) {
+            final int nrays = (rnd.nextBoolean()) ? 32 : 8 + rnd.nextInt(57);
+            // integer origins 0 to 3 pixels apart, as neighbouring candidates
+            final long[] a = randomPolygon(rnd, nrays, 50, 50, 10, 100);
+            final long[] b = randomPolygon(rnd, nrays, 50 + rnd.nextInt(7) - 3, 50 + rnd.nextInt(7) - 3, 10, 100);
+            long t0 = System.nanoTime();
+            final double area = intersectionArea(a, b);
+            long t1 = System.nanoTime();
+            final double ref = clipperIntersectionArea(a, b);
+            long t2 = System.nanoTime();
+            tKernel += t1 - t0;
+            tClipper += t2 - t1;
+            final double err = Math.abs(area - ref);
+            maxAbsErr = Math.max(maxAbsErr, err);
+            maxRelErr = Math.max(maxRelErr, err / Math.max(1, Math.min(area(a), area(b))));
+        }
+        System.out.println(String.format("%d pairs: max abs error %.3g, max relative error %.3g", nPairs, maxAbsErr, maxRelErr));
+        System.out.println(String.format("kernel %d ms, Clipper %d ms", tKernel/1000000, tClipper/1000000));
+        if (!(maxRelErr <= MAX_RELATIVE_ERROR))
+            throw new IllegalStateException(String.format("Intersection differs from Clipper: max relative error %.3g > %.3g", maxRelErr, MAX_RELATIVE_ERROR));
+    }
+}
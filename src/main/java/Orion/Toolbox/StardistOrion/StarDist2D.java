@@ -1,12 +1,15 @@
 package Orion.Toolbox.StardistOrion;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 import java.util.stream.IntStream;
 import javax.swing.JOptionPane;
 import org.scijava.command.Command;
@@ -14,11 +17,8 @@ import org.scijava.command.CommandModule;
 
 import ij.IJ;
 import ij.ImagePlus;
-import ij.plugin.Concatenator;
-import java.io.PrintStream;
-import mcib3d.geom2.tracking.TrackingAssociation;
-import mcib3d.image3d.ImageHandler;
-import mcib3d.image3d.ImageInt;
+import ij.ImageStack;
+import mcib3d.geom2.Objects3DIntPopulation;
 import net.imagej.Dataset;
 import net.imagej.ImageJ;
 import net.imagej.ImgPlus;
@@ -26,6 +26,7 @@ import net.imagej.axis.Axes;
 import net.imagej.axis.AxisType;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
 import net.imglib2.img.display.imagej.ImageJFunctions;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.real.FloatType;
@@ -38,6 +39,8 @@ public class StarDist2D extends StarDist2DBase implements Command {
      
     private Dataset input;
     private boolean normalizeInput = true;
+    private boolean normalizeJointly = false; // same percentiles for all frames
+    private ImagePlus inputImp = null;        // pixels for the Java percentile normalization
     private double percentileBottom = 0.2;
     private double percentileTop = 99.8;
     private Dataset prob;
@@ -52,29 +55,91 @@ public class StarDist2D extends StarDist2DBase implements Command {
    
     private int nTiles = 1;
     private int excludeBoundary = 2;  // boundary_exclusion
+    private int grid = 1;             // candidates subsampling grid
+    private int maximaRadius = 0;     // candidates restricted to prob local maxima
+    private boolean runNMS = true;    // false: keep candidates only (threshold sweep)
     private String roiPosition = "Automatic";
     private String roiPositionActive = null;
     private boolean verbose = false;
     private boolean showCsbdeepProgress = false;
     private boolean showProbAndDist = false;
     private ImageJ ij;
-    private Object obj_;
     private File tmpModelFile_ = null;
+    private final StringBuilder runLog = new StringBuilder(); // messages of the last run
     private double minColoc = 0.1;     
-    private double maxBB = 0;
-    private int costChoice = 0 ;
     
     private float maxLabel = 0; // for association labels
+    private final List<Candidates> framePolygons = new ArrayList<>(); // "Polygons" output, one per frame
     
-    public StarDist2D(Object obj, File tmpModelFile) {
+    // permits shared by all instances, one per network inference running at the same time
+    private static int maxConcurrentInferences = Math.max(1, Runtime.getRuntime().availableProcessors() / 4);
+    private static Semaphore inferencePermits = new Semaphore(maxConcurrentInferences, true);
+    
+    /**
+     * StarDist instance, instances can run concurrently in separate threads
+     * Network inferences of all instances are limited by the shared permit pool (see setMaxConcurrentInferences)
+     * @param tmpModelFile model file
+     */
+    public StarDist2D(File tmpModelFile) {
         ij = new ImageJ();
         ij.launch();
         dataset = ij.dataset();
         command = ij.command();
-        obj_ = obj;
         tmpModelFile_ = tmpModelFile;
     }
     
+    /**
+     * @deprecated obj is not used anymore, inferences are guarded by the shared permit pool
+     */
+    @Deprecated
+    public StarDist2D(Object obj, File tmpModelFile) {
+        this(tmpModelFile);
+    }
+    
+    /**
+     * Set the number of network inferences allowed to run at the same time in this JVM
+     * Runs already waiting keep the previous pool
+     * @param n number of permits (default: available cores / 4, at least 1)
+     */
+    public static synchronized void setMaxConcurrentInferences(int n) {
+        maxConcurrentInferences = Math.max(1, n);
+        inferencePermits = new Semaphore(maxConcurrentInferences, true);
+    }
+    
+    public static synchronized int getMaxConcurrentInferences() {
+        return maxConcurrentInferences;
+    }
+    
+    private static synchronized Semaphore inferencePermits() {
+        return inferencePermits;
+    }
+    
+    /**
+     * Run the network holding one inference permit
+     */
+    private Dataset predict(HashMap<String, Object> paramsCNN) throws InterruptedException, ExecutionException {
+        final Semaphore permits = inferencePermits();
+        permits.acquire();
+        try {
+            final Future<CommandModule> futureCNN = command.run(de.csbdresden.csbdeep.commands.GenericNetwork.class, false, paramsCNN);
+            return (Dataset) futureCNN.get().getOutput("output");
+        } finally {
+            permits.release();
+        }
+    }
+    
+    private void log(String msg) {
+        runLog.append(msg).append('\n');
+    }
+    
+    /**
+     * Messages of the last run, captured per instance instead of printed to System.out
+     * Output of CSBDeep and TensorFlow is not captured: it goes to the console shared by all instances
+     */
+    public String getRunLog() {
+        return runLog.toString();
+    }
+    
     private void checkForCSBDeep() {
         try {
             Class.forName("de.csbdresden.csbdeep.commands.GenericNetwork");
@@ -110,9 +175,10 @@ public class StarDist2D extends StarDist2DBase implements Command {
             roiPositionActive = input.numDimensions() > 3 && !input.isRGBMerged() ? "Hyperstack" : "Stack";
         else
             roiPositionActive = roiPosition;
-        PrintStream console = System.out;
-        System.out.println("Starting StarDist ...");
-        System.setOut(new NullPrintStream());
+        framePolygons.clear();
+        runLog.setLength(0);
+        log("Starting StarDist ...");
+        final long start = System.currentTimeMillis();
         try {
             final HashMap<String, Object> paramsCNN = new HashMap<>();
             paramsCNN.put("input", input);
@@ -130,7 +196,10 @@ public class StarDist2D extends StarDist2DBase implements Command {
             paramsNMS.put("probThresh", probThresh);
             paramsNMS.put("nmsThresh", nmsThresh);
             paramsNMS.put("excludeBoundary", 2);
+            paramsNMS.put("grid", grid);
+            paramsNMS.put("maximaRadius", maximaRadius);
             paramsNMS.put("roiPosition", roiPositionActive);
+            paramsNMS.put("nms", runNMS);
             paramsNMS.put("verbose", verbose);
       
             final LinkedHashSet<AxisType> inputAxes = Utils.orderedAxesSet(input);
@@ -139,20 +208,30 @@ public class StarDist2D extends StarDist2DBase implements Command {
             // TODO: option to normalize image/timelapse channel by channel or all channels jointly
             
             if (true && isTimelapse) {
-                // TODO: option to normalize timelapse frame by frame (currently) or jointly
                 final ImgPlus<? extends RealType<?>> inputImgPlus = input.getImgPlus();
                 final long numFrames = input.getFrames();
                 final int inputTimeDim = IntStream.range(0, inputAxes.size()).filter(d -> input.axis(d).type() == Axes.TIME).findFirst().getAsInt();
+                // percentile normalization in Java, frames normalized into one reused buffer
+                final Object[] planes = javaNormalizationPlanes(numFrames, inputAxes.size());
+                final float[] frameBuffer = (planes != null) ? new float[(int)(input.getWidth()*input.getHeight())] : null;
+                final Dataset normalizedFrameDS = (planes != null) 
+                        ? dataset.create(new ImgPlus<>(ArrayImgs.floats(frameBuffer, input.getWidth(), input.getHeight()), "Input Frame", new AxisType[]{Axes.X, Axes.Y}))
+                        : null;
+                double[] pcts = (planes != null && normalizeJointly) ? PercentileNormalizer.percentiles(planes, percentileBottom, percentileTop) : null;
+                if (planes != null) paramsCNN.put("normalizeInput", false);
                 for (int t = 0; t < numFrames; t++) {
-                    final Dataset inputFrameDS = Utils.raiToDataset(dataset, "Input Frame",
-                            Views.hyperSlice(inputImgPlus, inputTimeDim, t),
-                            inputAxes.stream().filter(axis -> axis != Axes.TIME));
-                    paramsCNN.put("input", inputFrameDS);
-                    final Dataset prediction;
-                    synchronized(obj_){
-                    final Future<CommandModule> futureCNN = command.run(de.csbdresden.csbdeep.commands.GenericNetwork.class, false, paramsCNN);
-                    prediction = (Dataset) futureCNN.get().getOutput("output");
+                    if (planes != null) {
+                        if (!normalizeJointly)
+                            pcts = PercentileNormalizer.percentiles(new Object[]{planes[t]}, percentileBottom, percentileTop);
+                        PercentileNormalizer.normalize(planes[t], frameBuffer, pcts[0], pcts[1]);
+                        paramsCNN.put("input", normalizedFrameDS);
+                    } else {
+                        final Dataset inputFrameDS = Utils.raiToDataset(dataset, "Input Frame",
+                                Views.hyperSlice(inputImgPlus, inputTimeDim, t),
+                                inputAxes.stream().filter(axis -> axis != Axes.TIME));
+                        paramsCNN.put("input", inputFrameDS);
                     }
+                    final Dataset prediction = predict(paramsCNN);
                     
                     final Pair<Dataset, Dataset> probAndDist = splitPrediction(prediction);
                     final Dataset probDS = probAndDist.getA();
@@ -176,8 +255,7 @@ public class StarDist2D extends StarDist2DBase implements Command {
                 //       - joint normalization of all frames
                 //       - requires more memory to store intermediate results (prob and dist) of all frames
                 //       - allows showing prob and dist easily
-                final Future<CommandModule> futureCNN = command.run(de.csbdresden.csbdeep.commands.GenericNetwork.class, false, paramsCNN);
-                final Dataset prediction = (Dataset) futureCNN.get().getOutput("output");
+                final Dataset prediction = predict(paramsCNN);
 
                 final Pair<Dataset, Dataset> probAndDist = splitPrediction(prediction);
                 final Dataset probDS = probAndDist.getA();
@@ -192,11 +270,14 @@ public class StarDist2D extends StarDist2DBase implements Command {
 
                 final Future<CommandModule> futureNMS = command.run(StarDist2DNMS.class, false, paramsNMS);
                 label = (Dataset) futureNMS.get().getOutput("label");
+                if (outputType.equals("Polygons"))
+                    framePolygons.add((Candidates) futureNMS.get().getOutput("polygons"));
             } 
         } catch (InterruptedException | ExecutionException e) {
+            log("StarDist failed: " + e);
             e.printStackTrace();
         }
-        System.setOut(console);
+        log(String.format("StarDist took %d ms", System.currentTimeMillis() - start));
     }
 
     // this function is very cumbersome... is there a better way to do this?
@@ -235,12 +316,14 @@ public class StarDist2D extends StarDist2DBase implements Command {
 
 
     @Override
-    protected void exportPolygons(Candidates polygons) {}
+    protected void exportPolygons(Candidates polygons) {
+        framePolygons.add(polygons);
+    }
 
 
     @Override
     protected ImagePlus createLabelImage() {
-        return IJ.createImage("Label Image", "16-bit black", (int)input.getWidth(), (int)input.getHeight(), 1, 1, (int)input.getFrames());
+        return IJ.createImage("Label Image", "32-bit black", (int)input.getWidth(), (int)input.getHeight(), 1, 1, (int)input.getFrames());
     }
 
 
@@ -259,8 +342,29 @@ public class StarDist2D extends StarDist2DBase implements Command {
         ij.command().run(StarDist2D.class, true, params);
     }
     
+    /**
+     * Pixel arrays of the frames if they can be normalized in Java (X,Y,T input loaded from an ImagePlus, no RGB)
+     * @return null to let CSBDeep normalize each frame
+     */
+    private Object[] javaNormalizationPlanes(long numFrames, int nDims) {
+        if (!normalizeInput || inputImp == null || nDims != 3 || inputImp.getStackSize() != numFrames) return null;
+        final Object[] planes = new Object[(int)numFrames];
+        for (int t = 0; t < numFrames; t++)
+            planes[t] = inputImp.getStack().getPixels(t+1);
+        return PercentileNormalizer.isSupported(planes) ? planes : null;
+    }
+    
+    /**
+     * Normalize all frames with the same percentiles (default: frame by frame)
+     * @param jointly 
+     */
+    public void setJointNormalization(boolean jointly) {
+        normalizeJointly = jointly;
+    }
+    
     public void loadInput(ImagePlus imp) {
         checkImageSize(imp);
+        inputImp = imp;
         if ( imp.getNSlices()>1) imp.setDimensions(1, 1, imp.getNSlices());
         final AxisType[] axes = new AxisType[]{Axes.X, Axes.Y, Axes.TIME};
         final Img inputImg = (Img) ImageJFunctions.wrap(imp);
@@ -275,38 +379,83 @@ public class StarDist2D extends StarDist2DBase implements Command {
         return ImageJFunctions.wrap((RandomAccessibleInterval)img1, "Labelled");
     }
     
+    /**
+     * Associate labels of consecutive slices into 3D labels
+     * The label image is relabelled in place (no crop or concatenation)
+     * @return label image with 3D labels
+     */
     public ImagePlus associateLabels() {
-        ImagePlus labImg = getLabelImagePlus();
+        // rasterized label planes if available, otherwise a copy of the label dataset
+        ImagePlus labImg = (labelImage != null) ? labelImage : getLabelImagePlus().duplicate();
         // put the image back in slices
         if (labImg.getNChannels()>1) labImg.setDimensions(1, labImg.getNChannels(), 1);
         if (labImg.getNFrames()>1) labImg.setDimensions(1, labImg.getNFrames(), 1);
         // do association
-        ImagePlus[] associated = new ImagePlus[labImg.getNSlices()];
-        associated[0] = labImg.crop(1+"-"+1);
-        maxLabel = 0;
-        IJ.run(labImg, "Select None", ""); 
-        for (int i=1; i<labImg.getNSlices(); i++) {
-            ImagePlus inext = labImg.crop((i+1)+"-"+(i+1));
-            associated[i] = associate(inext, associated[i-1]);
-            inext.flush();
-            inext.close();             
-        }
-        ImagePlus hyperRes = new Concatenator().concatenate(associated, false);
-        hyperRes.setDimensions(1, hyperRes.getNFrames(), 1);
-        labImg.changes = false;
-        labImg.close();
-        return hyperRes;
+        ImageStack stack = labImg.getStack();
+        maxLabel = LabelAssociation.associate(stack, minColoc);
+        // planes made 32-bit for labels beyond their range
+        if (stack.getBitDepth() != labImg.getBitDepth()) labImg.setStack(stack);
+        labImg.setTitle("Labelled");
+        return labImg;
     }
     
-    /** Associate the label of frame t-1 with slice z */
-    public ImagePlus associate(ImagePlus ip, ImagePlus ref) {
-        ImageHandler img1 = ImageInt.wrap(ref);
-        ImageHandler img2 = ImageInt.wrap(ip);
-        TrackingAssociation association = new TrackingAssociation(img1, img2, maxBB, minColoc);
-        association.setMaxLabel(maxLabel);
-        ImageHandler trackedImage = association.getTrackedImage();
-        maxLabel = association.getMaxLabel();
-        return trackedImage.getImagePlus();
+    /**
+     * Build 3D objects straight from the polygons of each slice, no label image is created
+     * Slices are rasterized into run-length planes and associated as in associateLabels
+     * Needs to have been run in Polygons output type mode
+     * @param width width of the objects image (polygons are rescaled if the input was resized)
+     * @param height height of the objects image
+     * @return population with 3D labels
+     */
+    public Objects3DIntPopulation getObjectsPopulation(int width, int height) {
+        final int nSlices = framePolygons.size();
+        final double fx = (double)input.getWidth() / width;
+        final double fy = (double)input.getHeight() / height;
+        final LabelRuns[] slices = new LabelRuns[nSlices];
+        IntStream.range(0, nSlices).forEach(z -> {
+            final int[] plane = new int[width*height];
+            LabelRasterizer.fill(framePolygons.get(z), framePolygons.get(z).getWinner(), plane, width, height, 1, fx, fy);
+            slices[z] = new LabelRuns(plane, width, height);
+        });
+        final int[][] labels3D = LabelAssociation.associate(slices, minColoc);
+        int nLabels = 0;
+        for (int[] labels : labels3D)
+            for (int l : labels) nLabels = Math.max(nLabels, l);
+        maxLabel = nLabels;
+        return LabelRuns.toPopulation(slices, labels3D, nLabels);
+    }
+    
+    /**
+     * Run the network once and evaluate a grid of thresholds
+     * Candidates are built at the lowest probability threshold and the overlap graph of each slice once,
+     * each setting only re-runs the NMS on the graphs and the 3D association
+     * @param probThresholds
+     * @param nmsThresholds
+     * @param width width of the label images (polygons are rescaled if the input was resized)
+     * @param height height of the label images
+     * @param labelImages return the label image of each setting
+     * @return results, probThresh major
+     */
+    public List<ThresholdSweep.Result> sweepThresholds(double[] probThresholds, double[] nmsThresholds, int width, int height, boolean labelImages) {
+        final double probThreshRun = probThresh;
+        final String outputTypeRun = outputType;
+        probThresh = Arrays.stream(probThresholds).min().getAsDouble();
+        outputType = "Polygons";
+        runNMS = false;
+        try {
+            run();
+        } finally {
+            probThresh = probThreshRun;
+            outputType = outputTypeRun;
+            runNMS = true;
+        }
+        final long start = System.currentTimeMillis();
+        final ThresholdSweep sweep = new ThresholdSweep(framePolygons, minColoc);
+        log(String.format("Overlap graphs took %d ms", sweep.getGraphTime()));
+        final List<ThresholdSweep.Result> results = sweep.evaluate(probThresholds, nmsThresholds, width, height,
+                (double)input.getWidth() / width, (double)input.getHeight() / height, labelImages);
+        log(String.format("Threshold sweep of %d settings took %d ms", results.size(), System.currentTimeMillis() - start));
+        return results;
     }
     
     public void setParams(double percentileBottomVar, double percentileTopVar, double probThreshVar, double overlapThreshVar, String outPutType){
@@ -318,5 +467,15 @@ public class StarDist2D extends StarDist2DBase implements Command {
         outputType = outPutType;
 
     }
+    
+    /**
+     * Prefilter candidates before polygon construction and NMS
+     * @param gridVar keep one pixel every gridVar pixels in x and y (1 = no subsampling)
+     * @param maximaRadiusVar keep only local maxima of prob within this radius (0 = no filter)
+     */
+    public void setCandidatesPrefilter(int gridVar, int maximaRadiusVar) {
+        grid = gridVar;
+        maximaRadius = maximaRadiusVar;
+    }
 
 }
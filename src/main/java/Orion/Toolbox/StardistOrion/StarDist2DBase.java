@@ -1,7 +1,7 @@
 package Orion.Toolbox.StardistOrion;
 
 import java.net.URL;
-import java.util.List;
+import java.util.stream.IntStream;
 
 import org.scijava.app.StatusService;
 import org.scijava.command.CommandService;
@@ -12,7 +12,6 @@ import ij.gui.PointRoi;
 import ij.gui.PolygonRoi;
 import ij.gui.Roi;
 import ij.plugin.frame.RoiManager;
-import ij.process.ImageProcessor;
 import net.imagej.Dataset;
 import net.imagej.DatasetService;
 import net.imagej.axis.Axes;
@@ -38,7 +37,9 @@ public abstract class StarDist2DBase {
     protected ImagePlus labelImage = null;
     protected int labelId = 0;
     protected long labelCount = 0;
-    protected static final int MAX_LABEL_ID = 65535;
+    // labels are rasterized as int but stored in a 32-bit float ImagePlus (ImageJ has no 32-bit
+    // integer type), exact integers up to 2^24: higher label IDs may be merged with their neighbours
+    protected static final int MAX_LABEL_ID = 1 << 24;
 
     // ---------
 
@@ -113,22 +114,30 @@ public abstract class StarDist2DBase {
         }
     }
 
+    /**
+     * Rasterize the winners into the frame of the 32-bit float label image, with a warning as soon
+     * as label IDs exceed MAX_LABEL_ID and can't be stored exactly
+     */
     protected void exportLabelImage(Candidates polygons, int framePosition) {
         if (labelImage == null)
             labelImage = createLabelImage();
-        if (framePosition > 0)
-            labelImage.setT(framePosition);
-        final ImageProcessor ip = labelImage.getProcessor();
-        final List<Integer> winner = polygons.getWinner();
-        final int numWinners = winner.size();
-        // winners are ordered by score -> draw from last to first to give priority to higher scores in case of overlaps
-        for (int i = numWinners-1; i >= 0; i--) {
-            final PolygonRoi polyRoi = polygons.getPolygonRoi(winner.get(i));
-            ip.setColor(1 + ((labelId + i) % MAX_LABEL_ID));
-            ip.fill(polyRoi);
-        }
+        final int width = labelImage.getWidth();
+        final int height = labelImage.getHeight();
+        final int[] winner = polygons.getWinner();
+        final int numWinners = winner.length;
+        // winners are ordered by score -> first label written in a pixel has the highest score in case of overlaps
+        final int[] labels = new int[width*height];
+        LabelRasterizer.fill(polygons, winner, labels, width, height, labelId + 1);
+        final int index = labelImage.getStackIndex(1, 1, Math.max(1, framePosition));
+        final float[] pixels = (float[]) labelImage.getStack().getPixels(index);
+        IntStream.range(0, height).parallel().forEach(y -> {
+            for (int x = y*width; x < (y+1)*width; x++)
+                pixels[x] = labels[x];
+        });
+        if (labelId <= MAX_LABEL_ID && labelId + numWinners > MAX_LABEL_ID)
+            IJ.log(String.format("WARNING: more than %d StarDist labels, label IDs above are not exact in the 32-bit float label image (use the ROI Manager output).", MAX_LABEL_ID));
         labelCount += numWinners;
-        labelId = (labelId + numWinners) % MAX_LABEL_ID;
+        labelId += numWinners;
     }
 
     abstract protected void exportPolygons(Candidates polygons);
@@ -138,7 +147,7 @@ public abstract class StarDist2DBase {
     protected Dataset labelImageToDataset(String outputType) {
         if (outputType.equals("Label Image") || outputType.equals("Both")) {
             if (labelCount > MAX_LABEL_ID) {
-                log.error(String.format("Found more than %d segments -> label image does contain some repetitive IDs.\n(\"%s\" output instead does not have this problem).", MAX_LABEL_ID, "ROI Manager"));
+                log.error(String.format("Found more than %d segments -> label image may contain some inexact IDs (32-bit float).\n(\"%s\" output instead does not have this problem).", MAX_LABEL_ID, "ROI Manager"));
             }
             final boolean isTimelapse = labelImage.getNFrames() > 1;
             final Img labelImg = (Img) ImageJFunctions.wrap(labelImage);
@@ -150,7 +159,7 @@ public abstract class StarDist2DBase {
                  //ds.setColorTable(lut.loadLUT(lut.findLUTs().get("StarDist.lut")), 0);
                 //ds.setColorTable(lut.loadLUT(getResource("luts/StarDist.lut")), 0);
                 ds.setChannelMinimum(0, 0);
-                ds.setChannelMaximum(0, Math.min(labelCount, MAX_LABEL_ID));
+                ds.setChannelMaximum(0, labelCount);
             } catch (Exception e) {
                 IJ.log("Couldn't set LUT for label image.");
                 e.printStackTrace();
@@ -38,6 +38,12 @@ public class StarDist2DNMS extends StarDist2DBase implements Command {
      // ---------
     @Parameter(label="excludeBoundary", min="0", stepSize="1")
     private int excludeBoundary = 2;
+    @Parameter(label="grid", min="1", stepSize="1")
+    private int grid = 1;
+    @Parameter(label="maximaRadius", min="0", stepSize="1")
+    private int maximaRadius = 0;
+    @Parameter(label="nms", required=false)
+    private boolean nms = true;       // false: candidates only, for threshold sweeps
     @Parameter(label="roiPosition", choices={"Stack", "Hyperstack"})
     private String roiPosition = "Automatic";
    @Parameter(label="verbose")
@@ -64,17 +70,17 @@ public class StarDist2DNMS extends StarDist2DBase implements Command {
             final long numFrames = prob.getFrames();
 
             for (int t = 0; t < numFrames; t++) {
-                final Candidates polygons = new Candidates(Views.hyperSlice(probRAI, probTimeDim, t), Views.hyperSlice(distRAI, distTimeDim, t), probThresh, excludeBoundary, verbose ? log : null);
-                polygons.nms(nmsThresh);
+                final Candidates polygons = new Candidates(Views.hyperSlice(probRAI, probTimeDim, t), Views.hyperSlice(distRAI, distTimeDim, t), probThresh, excludeBoundary, grid, maximaRadius, verbose ? log : null);
+                if (nms) polygons.nms(nmsThresh);
                 if (verbose)
-                    log.info(String.format("frame %03d: %d polygon candidates, %d remain after non-maximum suppression", t, polygons.getSorted().size(), polygons.getWinner().size()));
+                    log.info(String.format("frame %03d: %d polygon candidates (reduction factor %.1f), %d remain after non-maximum suppression", t, polygons.getSorted().length, polygons.getReductionFactor(), polygons.getWinner().length));
                 export(outputType, polygons, 1+t, numFrames, roiPosition);
             }
         } else {
-            final Candidates polygons = new Candidates(probRAI, distRAI, probThresh, excludeBoundary, verbose ? log : null);
-            polygons.nms(nmsThresh);
+            final Candidates polygons = new Candidates(probRAI, distRAI, probThresh, excludeBoundary, grid, maximaRadius, verbose ? log : null);
+            if (nms) polygons.nms(nmsThresh);
             if (verbose)
-                log.info(String.format("%d polygon candidates, %d remain after non-maximum suppression", polygons.getSorted().size(), polygons.getWinner().size()));
+                log.info(String.format("%d polygon candidates (reduction factor %.1f), %d remain after non-maximum suppression", polygons.getSorted().length, polygons.getReductionFactor(), polygons.getWinner().length));
             export(outputType, polygons, 0, 0, roiPosition);
         }
 
@@ -119,6 +125,12 @@ public class StarDist2DNMS extends StarDist2DBase implements Command {
         if (excludeBoundary < 0)
             return showError(String.format("%s must be >= 0", "Exclude Boundary"));
 
+        if (grid < 1)
+            return showError(String.format("%s must be >= 1", "Grid"));
+
+        if (maximaRadius < 0)
+            return showError(String.format("%s must be >= 0", "Maxima Radius"));
+
         if (!(outputType.equals("ROI Manager") || outputType.equals("Label Image") || outputType.equals("Both") || outputType.equals("Polygons")))
             return showError(String.format("%s must be one of {\"%s\", \"%s\", \"%s\"}.", "Output Type", "ROI Manager", "Label Image", "Both"));
 
@@ -139,7 +151,7 @@ public class StarDist2DNMS extends StarDist2DBase implements Command {
 
     @Override
     protected ImagePlus createLabelImage() {
-        return IJ.createImage("Label Image", "16-bit black", (int)prob.getWidth(), (int)prob.getHeight(), 1, 1, (int)prob.getFrames());
+        return IJ.createImage("Label Image", "32-bit black", (int)prob.getWidth(), (int)prob.getHeight(), 1, 1, (int)prob.getFrames());
     }
 
 
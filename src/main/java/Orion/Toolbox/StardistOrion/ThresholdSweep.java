@@ -0,0 +1,110 @@
+package Orion.Toolbox.StardistOrion;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import ij.IJ;
+import ij.ImagePlus;
+
+/**
+ * Evaluation of a grid of (probThresh, nmsThresh) settings from the candidates of each slice.
+ *
+ * Candidates are built once at the lowest probability threshold and their overlap graph once per
+ * slice; each setting only re-walks the graphs, rasterizes the winners and associates them in 3D.
+ */
+public class ThresholdSweep {
+
+    private final List<OverlapGraph> graphs = new ArrayList<>();
+    private final double minColoc;
+    private final long graphTime;
+
+    /**
+     * Result of one setting
+     */
+    public static class Result {
+        public final double probThresh, nmsThresh;
+        // number of 2D detections (all slices) and of 3D objects
+        public final int detections, objects;
+        public final long time;           // ms
+        public final ImagePlus labels;    // 3D labels, null if not requested
+
+        Result(double probThresh, double nmsThresh, int detections, int objects, long time, ImagePlus labels) {
+            this.probThresh = probThresh;
+            this.nmsThresh = nmsThresh;
+            this.detections = detections;
+            this.objects = objects;
+            this.time = time;
+            this.labels = labels;
+        }
+    }
+
+    /**
+     * @param frames candidates of each slice, built at the lowest probability threshold of the sweep
+     * @param minColoc minimal overlap for 3D association
+     */
+    public ThresholdSweep(List<Candidates> frames, double minColoc) {
+        final long start = System.currentTimeMillis();
+        for (Candidates c : frames)
+            graphs.add(new OverlapGraph(c));
+        this.minColoc = minColoc;
+        graphTime = System.currentTimeMillis() - start;
+    }
+
+    /**
+     * Time spent building the overlap graphs (ms)
+     */
+    public long getGraphTime() {
+        return graphTime;
+    }
+
+    /**
+     * Evaluate one setting
+     * @param probThresh
+     * @param nmsThresh
+     * @param width width of the label planes
+     * @param height height of the label planes
+     * @param fx polygons image width / width
+     * @param fy polygons image height / height
+     * @param labelImage also return the 3D label image
+     * @return
+     */
+    public Result evaluate(double probThresh, double nmsThresh, int width, int height, double fx, double fy, boolean labelImage) {
+        final long start = System.currentTimeMillis();
+        final int nSlices = graphs.size();
+        final LabelRuns[] slices = new LabelRuns[nSlices];
+        int detections = 0;
+        for (int z = 0; z < nSlices; z++) {
+            final OverlapGraph graph = graphs.get(z);
+            final int[] winner = graph.nms(probThresh, nmsThresh);
+            detections += winner.length;
+            final int[] plane = new int[width*height];
+            LabelRasterizer.fill(graph.getCandidates(), winner, plane, width, height, 1, fx, fy);
+            slices[z] = new LabelRuns(plane, width, height);
+        }
+        final int[][] labels3D = LabelAssociation.associate(slices, minColoc);
+        int nLabels = 0;
+        for (int[] labels : labels3D)
+            for (int l : labels) nLabels = Math.max(nLabels, l);
+
+        ImagePlus labels = null;
+        if (labelImage) {
+            labels = IJ.createImage(String.format("Labels prob=%.2f nms=%.2f", probThresh, nmsThresh), "32-bit black", width, height, 1, nSlices, 1);
+            final ImagePlus imp = labels;
+            IntStream.range(0, nSlices).parallel().forEach(z -> slices[z].draw((float[])imp.getStack().getPixels(z+1), labels3D[z]));
+        }
+        return new Result(probThresh, nmsThresh, detections, nLabels, System.currentTimeMillis() - start, labels);
+    }
+
+    /**
+     * Evaluate all (probThresh, nmsThresh) combinations
+     * @return results, probThresh major
+     */
+    public List<Result> evaluate(double[] probThresholds, double[] nmsThresholds, int width, int height, double fx, double fy, boolean labelImages) {
+        final List<Result> results = new ArrayList<>();
+        for (double p : probThresholds)
+            for (double t : nmsThresholds)
+                results.add(evaluate(p, t, width, height, fx, fy, labelImages));
+        return results;
+    }
+}
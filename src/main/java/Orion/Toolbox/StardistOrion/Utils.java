@@ -2,9 +2,8 @@ package Orion.Toolbox.StardistOrion;
 
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.Comparator;
 import java.util.LinkedHashSet;
-import java.util.List;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 import de.lighti.clipper.Path;
@@ -35,6 +34,17 @@ public class Utils {
         return new PolygonRoi(x, y, n, Roi.POLYGON);
     }
     
+    public static PolygonRoi toPolygonRoi(long[] poly, float S) {
+        int n = poly.length/2;
+        float[] x = new float[n];
+        float[] y = new float[n];
+        for (int i = 0; i < n; i++) {
+            x[i] = 0.5f + poly[2*i] / S;
+            y[i] = 0.5f + poly[2*i+1] / S;
+        }
+        return new PolygonRoi(x, y, n, Roi.POLYGON);
+    }
+    
     public static PointRoi toPointRoi(Point2D o, float S) {
         return new PointRoi(0.5f + o.x / S, 0.5f + o.y / S);
     }
@@ -54,16 +64,38 @@ public class Utils {
         return angles;
     }
 
-    public static List<Integer> argsortDescending(final List<Float> list) {
-        Integer[] indices = new Integer[list.size()];
-        for (int i = 0; i < indices.length; i++) indices[i] = i;
-        Arrays.sort(indices, new Comparator<Integer>() {
-            @Override
-            public int compare(Integer i, Integer j) {
-                return -Float.compare(list.get(i), list.get(j));
-            }
-        });
-        return Arrays.asList(indices);
+    // above this size sort packed keys with Arrays.parallelSort
+    public static final int PARALLEL_SORT_THRESHOLD = 1 << 16;
+
+    /**
+     * Indices of values sorted by descending value, ties by ascending index
+     * Scores and indices are packed into one long per value, so the sort works on primitives only
+     * @param values
+     * @return 
+     */
+    public static int[] argsortDescending(final float[] values) {
+        final int n = values.length;
+        final long[] keys = new long[n];
+        if (n >= PARALLEL_SORT_THRESHOLD) {
+            IntStream.range(0, n).parallel().forEach(i -> keys[i] = packDescending(values[i], i));
+            Arrays.parallelSort(keys);
+        } else {
+            for (int i = 0; i < n; i++) keys[i] = packDescending(values[i], i);
+            Arrays.sort(keys);
+        }
+        final int[] indices = new int[n];
+        for (int i = 0; i < n; i++) indices[i] = (int)keys[i];
+        return indices;
+    }
+
+    /**
+     * Pack value (high bits, descending order) and index (low bits) into a long
+     */
+    private static long packDescending(final float value, final int index) {
+        final int bits = Float.floatToIntBits(value);
+        // signed int order of key == float order
+        final int key = bits ^ ((bits >> 31) & 0x7fffffff);
+        return ((long)~key << 32) | (index & 0xffffffffL);
     }
 
     public static LinkedHashSet<AxisType> orderedAxesSet(Dataset image) {
@@ -9,6 +9,7 @@ import ij.gui.PolygonRoi;
 import ij.gui.Roi;
 import ij.io.FileSaver;
 import ij.measure.Calibration;
+import ij.measure.ResultsTable;
 import ij.plugin.Duplicator;
 import ij.plugin.ZProjector;
 import ij.plugin.filter.BackgroundSubtracter;
@@ -18,9 +19,14 @@ import java.io.File;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.DoubleAccumulator;
 import loci.common.services.DependencyException;
@@ -56,8 +62,21 @@ import net.haesleinhuepf.clijx.bonej.BoneJSkeletonize3D;
 import org.apache.commons.io.FilenameUtils;
 import org.scijava.util.ArrayUtils;
 import Orion.Toolbox.StardistOrion.StarDist2D;
+import Orion.Toolbox.StardistOrion.ThresholdSweep;
 import Orion.Toolbox.Cellpose.CellposeTaskSettings;
 import Orion.Toolbox.Cellpose.CellposeSegmentImgPlusAdvanced;
+import Orion.Toolbox.Cellpose.CellposeFlows;
+import Orion.Toolbox.Cellpose.CellposeTiling;
+import Orion.Toolbox.Spatial.CentroidDescriptor;
+import Orion.Toolbox.Spatial.CentroidModel;
+import Orion.Toolbox.Spatial.Centroids;
+import Orion.Toolbox.Spatial.HardCoreModel;
+import Orion.Toolbox.Spatial.KdFFunction;
+import Orion.Toolbox.Spatial.KdGFunction;
+import Orion.Toolbox.Spatial.LFunction;
+import Orion.Toolbox.Spatial.RipleyFunction;
+import Orion.Toolbox.Spatial.RoiVoxels;
+import Orion.Toolbox.Spatial.SharedSamples;
 import ij.gui.WaitForUserDialog;
 import ij.plugin.filter.ThresholdToSelection;
 import inra.ijpb.binary.distmap.ChamferDistanceTransform3DFloat;
@@ -80,11 +99,29 @@ public class Tools {
        
     // Cellpose
     public final String cellposeEnvDir = IJ.isWindows()? System.getProperty("user.home")+File.separator+"miniconda3"+File.separator+"envs"+File.separator+"CellPose" : "/opt/miniconda3/envs/cellpose";
+    public boolean cellposeWorker = false; // keep Cellpose/Omnipose models loaded in a persistent python worker
+    public long cellposeChunkBytes = 1L << 30; // pixels staged at once by batch detections
+    public int cellposeShards = 1; // concurrent Cellpose processes on CPU (0 = from cores and memory)
+    public int cellposeTileSize = 0; // 2D images larger than this are segmented in tiles (0 = no tiling)
+    public int cellposeTileOverlap = 0; // overlap of the tiles (0 = twice the diameter)
+    public double cellposeTileMinIoU = 0.5; // labels of adjacent tiles with a larger IoU are merged
     private final String cellposeModelsPath = (IJ.isWindows()) ? System.getProperty("user.home")+"\\.cellpose\\models\\" : System.getProperty("user.home")+"/.cellpose/models/"; 
     
     // Omnipose
     private final String omniposeEnvDirPath = (IJ.isLinux()) ? "/opt/miniconda3/envs/omnipose" : System.getProperty("user.home")+"\\miniconda3\\envs\\OmniPose";
     
+    // Spatial statistics
+    public boolean sdiSinglePass = false; // one generation of random samples for average, envelope and SDI
+    public double sdiAverageSplit = 0; // in single pass, fraction of the samples used only for the average
+    public int sdiParallelism = 0; // random samples described at once (0 = 75% of the cpus)
+    public boolean sdiStreaming = false; // bounded memory SDI: quantile sketch and gridded CDFs instead of all sample values
+    public boolean sdiKdTree = true; // G and F functions on centroids read from the objects, KD-tree nearest neighbours, no image drawn (false = mcib3d descriptors on drawn images)
+    public boolean sdiAdaptive = false; // random samples drawn in batches until the SDI is known within sdiTolerance (numRandomSamples is then a maximum, not used by computeSdiBatch)
+    public double sdiTolerance = 0.02; // width of the 99% confidence interval of the adaptive SDI
+    public boolean sdiAnalytical = false; // approximate SDI from the expected G and F under complete spatial randomness, no random samples (without hard-core distance only)
+    public double sdiEscalate = 0.1; // analytical SDI below this or above 1 - this is recomputed with random samples (0 = never)
+    public boolean sdiVerbose = false; // print the SDI, the random samples used and the time of each computation
+    
     
     /**
      * Display a message in the ImageJ console and status bar
@@ -990,6 +1027,12 @@ public class Tools {
     /**
      * Apply StarDist 2D slice by slice
      * Label detections in 3D
+     * Thread safety: can be called concurrently from several threads on different images,
+     * each call uses its own StarDist instance and state.
+     * Only the messages of StarDist itself are kept per call (StarDist2D.getRunLog): output of CSBDeep and
+     * TensorFlow goes to the shared console and interleaves between concurrent calls.
+     * Network inferences of all calls share the StarDist2D permit pool (StarDist2D.setMaxConcurrentInferences),
+     * other calls wait for a free permit. Concurrent calls must not share img, and cal must not be changed meanwhile.
      * @param img
      * @param factor
      * @param resize
@@ -1002,10 +1045,9 @@ public class Tools {
      */
     public Objects3DIntPopulation stardistObjectsPop(ImagePlus img, float factor, boolean resize, int blockRad, String stardistModel,
             double stardistProbThresh, double stardistOverlayThresh, boolean show) throws IOException {
-        Object syncObject = new Object();
         double stardistPercentileBottom = 0.2;
         double stardistPercentileTop = 99.8;
-        String stardistOutput = "Label Image";
+        String stardistOutput = "Polygons";
         
         // Resize image to be in a StarDist-friendly scale
         int imgWidth = img.getWidth();
@@ -1019,26 +1061,67 @@ public class Tools {
 
         // StarDist
         File starDistModelFile = new File(stardistModelsPath+File.separator+stardistModel);
-        StarDist2D star = new StarDist2D(syncObject, starDistModelFile);
+        StarDist2D star = new StarDist2D(starDistModelFile);
         star.loadInput(imgIn);
         star.setParams(stardistPercentileBottom, stardistPercentileTop, stardistProbThresh, stardistOverlayThresh, stardistOutput);
         star.run();
         flush_close(imgIn);
 
-        // Label detections in 3D
-        ImagePlus imgOut = (resize) ? star.getLabelImagePlus().resize(imgWidth, imgHeight, 1, "none") : star.getLabelImagePlus();       
-        ImagePlus imgLabels = star.associateLabels();
-        imgLabels.setCalibration(cal); 
+        // Label detections in 3D, polygons are rasterized at the original image size
+        Objects3DIntPopulation pop = star.getObjectsPopulation(imgWidth, imgHeight);
+        pop.setVoxelSizeXY(cal.pixelWidth);
+        pop.setVoxelSizeZ(cal.pixelDepth);
         if (show) {
+            ImageHandler imhLabels = ImageHandler.wrap(img).createSameDimensions();
+            pop.drawInImage(imhLabels);
+            ImagePlus imgLabels = imhLabels.getImagePlus();
+            imgLabels.setTitle("Labelled");
+            imgLabels.setCalibration(cal);
             imgLabels.show();
             new WaitForUserDialog("labelled image").show();
+            flush_close(imgLabels);
         }
-        flush_close(imgOut);
-        Objects3DIntPopulation pop = new Objects3DIntPopulation(ImageHandler.wrap(imgLabels));      
-        flush_close(imgLabels);
        return(pop);
     }
     
+    /**
+     * Tune StarDist thresholds: same preprocessing as stardistObjectsPop, network run once,
+     * then all (probThresh, overlapThresh) combinations are evaluated from the candidates
+     * @param img
+     * @param factor
+     * @param resize
+     * @param blockRad
+     * @param stardistModel
+     * @param stardistProbThresholds
+     * @param stardistOverlayThresholds
+     * @param labelImages keep the label image of each setting
+     * @return number of objects, label image and time of each setting
+     */
+    public List<ThresholdSweep.Result> stardistThresholdSweep(ImagePlus img, float factor, boolean resize, int blockRad, String stardistModel,
+            double[] stardistProbThresholds, double[] stardistOverlayThresholds, boolean labelImages) {
+        double stardistPercentileBottom = 0.2;
+        double stardistPercentileTop = 99.8;
+        
+        int imgWidth = img.getWidth();
+        int imgHeight = img.getHeight();
+        String method = (factor > 1) ? "bicubic" : "none";
+        ImagePlus imgIn = (resize) ? img.resize((int)(imgWidth*factor), (int)(imgHeight*factor), 1, method) : new Duplicator().run(img);
+        if (blockRad != 0)
+            IJ.run(imgIn, "Remove Outliers...", "radius="+blockRad+" threshold=1 which=Bright stack");
+
+        File starDistModelFile = new File(stardistModelsPath+File.separator+stardistModel);
+        StarDist2D star = new StarDist2D(starDistModelFile);
+        star.loadInput(imgIn);
+        star.setParams(stardistPercentileBottom, stardistPercentileTop, stardistProbThresholds[0], stardistOverlayThresholds[0], "Polygons");
+        List<ThresholdSweep.Result> results = star.sweepThresholds(stardistProbThresholds, stardistOverlayThresholds, imgWidth, imgHeight, labelImages);
+        flush_close(imgIn);
+        for (ThresholdSweep.Result res : results) {
+            if (res.labels != null) res.labels.setCalibration(cal);
+            print("StarDist prob="+res.probThresh+" overlap="+res.nmsThresh+": "+res.objects+" objects ("+res.detections+" detections) in "+res.time+" ms");
+        }
+        return(results);
+    }
+    
      /**
     * Detect Cells with CellPose
      * @param img
@@ -1065,13 +1148,24 @@ public class Tools {
         settings.setCellProbTh(cellposeMaskThreshold);
         settings.setFlowTh(cellposeFlowThreshold);
         settings.useGpu(useGPU);
+        settings.useWorker(cellposeWorker);
+        settings.setShards(cellposeShards);
         
-        // Run Omnipose
-        CellposeSegmentImgPlusAdvanced cellpose = new CellposeSegmentImgPlusAdvanced(settings, imgIn);
-        //PrintStream console = System.out;
-        //System.setOut(new NullPrintStream());
-        ImagePlus imgOut = cellpose.run();
-        //System.setOut(console);
+        // Run Cellpose, in tiles if the image is too large
+        ImagePlus imgOut;
+        if (cellposeTileSize > 0 && imgIn.getNSlices() == 1 && imgIn.getNFrames() == 1
+                && Math.max(imgIn.getWidth(), imgIn.getHeight()) > cellposeTileSize) {
+            int overlap = (cellposeTileOverlap > 0) ? cellposeTileOverlap : 2*cellposeDiameter;
+            imgOut = CellposeTiling.run(settings, imgIn, cellposeTileSize, overlap, cellposeTileMinIoU, cellposeChunkBytes);
+        } else {
+            CellposeSegmentImgPlusAdvanced cellpose = new CellposeSegmentImgPlusAdvanced(settings, imgIn);
+            imgOut = cellpose.run();
+        }
+        if (imgOut == null) {
+            print("Cellpose failed on image "+img.getTitle());
+            flush_close(imgIn);
+            return(new Objects3DIntPopulation());
+        }
         
         ImageProcessor imgOutProc = (resize) ? imgOut.getProcessor().resize(imgWidth, imgHeight, false) : imgOut.getProcessor();
         imgOut = new ImagePlus("", imgOutProc);
@@ -1089,6 +1183,107 @@ public class Tools {
     }
     
     
+    /**
+     * Run the Cellpose network once on a 2D image and keep its flows and cell probability,
+     * masks for other thresholds are then computed in Java with cellposeDetection(flows, ...)
+     * (persistent worker, Cellpose models only)
+     * @param img
+     * @param cellposeModel
+     * @param cellposeDiameter
+     * @param factor
+     * @param resize
+     * @param useGPU
+     * @return flows, null if Cellpose failed
+     */
+    public CellposeFlows cellposeFlows(ImagePlus img, String cellposeModel, int cellposeDiameter, int factor, boolean resize, boolean useGPU) {
+        String method = (factor > 1) ? "bicubic" : "none";
+        ImagePlus imgIn = (resize) ? img.resize(img.getWidth()*factor, img.getHeight()*factor, 1, method) : new Duplicator().run(img);
+        CellposeTaskSettings settings = new CellposeTaskSettings(cellposeModelsPath+cellposeModel, 1, cellposeDiameter, cellposeEnvDir);
+        settings.useGpu(useGPU);
+        try {
+            // masks at the size of img
+            return CellposeFlows.compute(settings, imgIn).setOutputSize(img.getWidth(), img.getHeight());
+        } catch (IOException e) {
+            print("Cellpose failed on image "+img.getTitle()+": "+e.getMessage());
+            return null;
+        } finally {
+            flush_close(imgIn);
+        }
+    }
+    
+    /**
+     * Detect Cells from the kept Cellpose flows, without running the network
+     * @param flows
+     * @param cellposeMaskThreshold
+     * @param cellposeFlowThreshold
+     * @param show
+     * @return 
+     */
+    public Objects3DIntPopulation cellposeDetection(CellposeFlows flows, double cellposeMaskThreshold, double cellposeFlowThreshold, boolean show) {
+        ImagePlus imgOut = new ImagePlus("", flows.masks(cellposeMaskThreshold, cellposeFlowThreshold));
+        imgOut.setCalibration(cal);
+        if (show) {
+            imgOut.show();
+            new WaitForUserDialog("labelled image").show();
+        }
+        Objects3DIntPopulation pop = new Objects3DIntPopulation(ImageHandler.wrap(imgOut));
+        flush_close(imgOut);
+        return(pop);
+    }
+    
+    
+    /**
+     * Detect Cells with CellPose in several images, one Cellpose run per chunk of images
+     * (chunks bounded by cellposeChunkBytes)
+     * @param imgs
+     * @param cellposeModel
+     * @param cellposeDiameter
+     * @param cellposeMaskThreshold
+     * @param cellposeFlowThreshold
+     * @param factor
+     * @param resize
+     * @param useGPU
+     * @return populations in the order of imgs, empty if the image failed
+     */
+    public List<Objects3DIntPopulation> cellposeBatchDetection(List<ImagePlus> imgs, String cellposeModel, int cellposeDiameter, 
+            double cellposeMaskThreshold, double cellposeFlowThreshold, int factor, boolean resize, boolean useGPU) {
+        
+        String method = (factor > 1) ? "bicubic" : "none";
+        List<ImagePlus> imgsIn = new ArrayList<>();
+        for (ImagePlus img : imgs)
+            imgsIn.add((resize) ? img.resize(img.getWidth()*factor, img.getHeight()*factor, 1, method) : new Duplicator().run(img));
+        String model = cellposeModelsPath+cellposeModel;
+        // Set Cellpose settings
+        CellposeTaskSettings settings = new CellposeTaskSettings(model, 1, cellposeDiameter, cellposeEnvDir);
+        settings.setCellProbTh(cellposeMaskThreshold);
+        settings.setFlowTh(cellposeFlowThreshold);
+        settings.useGpu(useGPU);
+        settings.useWorker(cellposeWorker);
+        settings.setShards(cellposeShards);
+        
+        // Run Cellpose
+        List<ImagePlus> imgsOut = CellposeSegmentImgPlusAdvanced.runBatch(settings, imgsIn, cellposeChunkBytes);
+        
+        List<Objects3DIntPopulation> pops = new ArrayList<>();
+        for (int i = 0; i < imgs.size(); i++) {
+            ImagePlus imgOut = imgsOut.get(i);
+            if (imgOut == null) {
+                print("Cellpose failed on image "+imgs.get(i).getTitle());
+                pops.add(new Objects3DIntPopulation());
+            } else {
+                ImageProcessor imgOutProc = (resize) ? imgOut.getProcessor().resize(imgs.get(i).getWidth(), imgs.get(i).getHeight(), false) : imgOut.getProcessor();
+                ImagePlus imgLabels = new ImagePlus("", imgOutProc);
+                imgLabels.setCalibration(cal);
+                pops.add(new Objects3DIntPopulation(ImageHandler.wrap(imgLabels)));
+                flush_close(imgLabels);
+                flush_close(imgOut);
+            }
+            flush_close(imgsIn.get(i));
+        }
+        return(pops);
+    }
+    
+    
     /**
     * Detect bacteria with Omnipose
      * @param img
@@ -1118,6 +1313,8 @@ public class Tools {
         settings.setCellProbTh(omniposeMaskThreshold);
         settings.setFlowTh(omniposeFlowThreshold);
         settings.useGpu(useGPU);
+        settings.useWorker(cellposeWorker);
+        settings.setShards(cellposeShards);
         
         // Run Omnipose
         CellposeSegmentImgPlusAdvanced cellpose = new CellposeSegmentImgPlusAdvanced(settings, imgIn);
@@ -1146,25 +1343,43 @@ public class Tools {
      * @param distHardCore
      * @param numRandomSamples
      * @param plotName
-     * @return
+     * @return sdi, area under the observed curve, random samples used, time in ms
      */
     public double[] computeSdiG(Objects3DIntPopulation popInt, Object3DInt roiInt, ImagePlus img, double distHardCore, int numRandomSamples, String plotName) {
-        // Convert Object3DInt & Objects3DIntPopulation objects into Object3D & Objects3DPopulation objects
-        ImageHandler imhRoi = ImageHandler.wrap(img).createSameDimensions();
-        roiInt.drawObject(imhRoi, 1);
-        Object3D roi = new Objects3DPopulation(imhRoi).getObject(0);
-        ImageHandler imhPop = ImageHandler.wrap(img).createSameDimensions();
-        popInt.drawInImage(imhPop);
-        Objects3DPopulation pop = new Objects3DPopulation(imhPop);
+        SpatialStatistics spatialStatistics;
+        if (sdiAnalytical && distHardCore <= 0) {
+            double[] results = computeSdiCsr(popInt, roiInt, true, plotName);
+            if (results[0] >= sdiEscalate && results[0] <= 1 - sdiEscalate) {
+                return(results);
+            }
+            print("Approximate SDI G = "+String.format("%.3f", results[0])+", recomputed with random samples");
+        }
+        if (sdiKdTree) {
+            // Centroids and ROI voxels read directly from the objects, no image drawn
+            double[] centroids = Centroids.of(popInt, cal.pixelWidth, cal.pixelDepth);
+            RoiVoxels roi = RoiVoxels.of(roiInt, cal.pixelWidth, cal.pixelDepth);
+            CentroidModel spatialModel = new HardCoreModel(popInt.getNbObjects(), distHardCore, roi);
+            spatialStatistics = new SpatialStatistics(new KdGFunction(), spatialModel, numRandomSamples, centroids);
+        } else {
+            // Convert Object3DInt & Objects3DIntPopulation objects into Object3D & Objects3DPopulation objects
+            ImageHandler imhRoi = ImageHandler.wrap(img).createSameDimensions();
+            roiInt.drawObject(imhRoi, 1);
+            Object3D roi = new Objects3DPopulation(imhRoi).getObject(0);
+            ImageHandler imhPop = ImageHandler.wrap(img).createSameDimensions();
+            popInt.drawInImage(imhPop);
+            Objects3DPopulation pop = new Objects3DPopulation(imhPop);
         
-        // Define spatial descriptor and model
-        SpatialDescriptor spatialDesc = new G_Function();     
-        SpatialModel spatialModel = new SpatialRandomHardCore(pop.getNbObjects(), distHardCore, roi); // average diameter of a cell in pixels
-        SpatialStatistics spatialStatistics = new SpatialStatistics(spatialDesc, spatialModel, numRandomSamples, pop); // nb of samples (randomized organizations simulated to compare with the spatial organization of the cells)
-        spatialStatistics.setEnvelope(0.05); // 2.5-97.5% envelope error
-        spatialStatistics.setVerbose(false);
+            // Define spatial descriptor and model
+            SpatialDescriptor spatialDesc = new G_Function();
+            SpatialModel spatialModel = new SpatialRandomHardCore(pop.getNbObjects(), distHardCore, roi); // average diameter of a cell in pixels
+            spatialStatistics = new SpatialStatistics(spatialDesc, spatialModel, numRandomSamples, pop); // nb of samples (randomized organizations simulated to compare with the spatial organization of the cells)
+        }
+        configureSdi(spatialStatistics);
         double sdiG = spatialStatistics.getSdi();
         double area = spatialStatistics.getAreaCurve();
+        int samplesUsed = spatialStatistics.getNbSamplesUsed();
+        long time = spatialStatistics.getElapsedTime();
+        if (sdiVerbose) print("SDI G = "+String.format("%.3f", sdiG)+" from "+samplesUsed+" random samples in "+time+" ms");
         
         Plot plotG = spatialStatistics.getPlot();
         plotG.draw();
@@ -1173,7 +1388,7 @@ public class Tools {
         FileSaver plotSave = new FileSaver(imgPlot);
         plotSave.saveAsTiff(plotName);
         flush_close(imgPlot); 
-        double[] results = {sdiG, area};
+        double[] results = {sdiG, area, samplesUsed, time};
         return(results);
     }
  /**
@@ -1184,34 +1399,262 @@ public class Tools {
      * @param distHardCore
      * @param numRandomSamples
      * @param plotName
-     * @return
+     * @return sdi, area under the observed curve, random samples used, time in ms
      */
     public double[] computeSdiF(Objects3DIntPopulation popInt, Object3DInt roiInt, ImagePlus img, double distHardCore, int numRandomSamples, String plotName) {
-        // Convert Object3DInt & Objects3DIntPopulation objects into Object3D & Objects3DPopulation objects
-        ImageHandler imhRoi = ImageHandler.wrap(img).createSameDimensions();
-        roiInt.drawObject(imhRoi, 1);
-        Object3D roi = new Objects3DPopulation(imhRoi).getObject(0);
-        ImageHandler imhPop = ImageHandler.wrap(img).createSameDimensions();
-        popInt.drawInImage(imhPop);
-        Objects3DPopulation pop = new Objects3DPopulation(imhPop);
+        SpatialStatistics spatialStatistics;
+        if (sdiAnalytical && distHardCore <= 0) {
+            double[] results = computeSdiCsr(popInt, roiInt, false, plotName);
+            if (results[0] >= sdiEscalate && results[0] <= 1 - sdiEscalate) {
+                return(results);
+            }
+            print("Approximate SDI F = "+String.format("%.3f", results[0])+", recomputed with random samples");
+        }
+        if (sdiKdTree) {
+            // Centroids and ROI voxels read directly from the objects, no image drawn
+            double[] centroids = Centroids.of(popInt, cal.pixelWidth, cal.pixelDepth);
+            RoiVoxels roi = RoiVoxels.of(roiInt, cal.pixelWidth, cal.pixelDepth);
+            CentroidModel spatialModel = new HardCoreModel(popInt.getNbObjects(), distHardCore, roi);
+            spatialStatistics = new SpatialStatistics(new KdFFunction(roi.randomPoints(2500, new SplittableRandom())), spatialModel, numRandomSamples, centroids);
+        } else {
+            // Convert Object3DInt & Objects3DIntPopulation objects into Object3D & Objects3DPopulation objects
+            ImageHandler imhRoi = ImageHandler.wrap(img).createSameDimensions();
+            roiInt.drawObject(imhRoi, 1);
+            Object3D roi = new Objects3DPopulation(imhRoi).getObject(0);
+            ImageHandler imhPop = ImageHandler.wrap(img).createSameDimensions();
+            popInt.drawInImage(imhPop);
+            Objects3DPopulation pop = new Objects3DPopulation(imhPop);
+        
+            // Define spatial descriptor and model
+            SpatialDescriptor spatialDesc = new F_Function(2500, roi); // nb of points used to compute the F-function
+            SpatialModel spatialModel = new SpatialRandomHardCore(pop.getNbObjects(), distHardCore, roi); // average diameter of a cell in pixels
+            spatialStatistics = new SpatialStatistics(spatialDesc, spatialModel, numRandomSamples, pop); // nb of samples (randomized organizations simulated to compare with the spatial organization of the cells)
+        }
+        configureSdi(spatialStatistics);
+        double sdiF = spatialStatistics.getSdi();
+        double area = spatialStatistics.getAreaCurve();
+        int samplesUsed = spatialStatistics.getNbSamplesUsed();
+        long time = spatialStatistics.getElapsedTime();
+        if (sdiVerbose) print("SDI F = "+String.format("%.3f", sdiF)+" from "+samplesUsed+" random samples in "+time+" ms");
+        
+        Plot plotF = spatialStatistics.getPlot();
+        plotF.draw();
+        plotF.addLabel(0.1, 0.1, "SDI = " + String.format("%.3f", sdiF));
+        ImagePlus imgPlot = plotF.getImagePlus();
+        FileSaver plotSave = new FileSaver(imgPlot);
+        plotSave.saveAsTiff(plotName);
+        flush_close(imgPlot); 
+        double[] results = {sdiF, area, samplesUsed, time};
+        return(results);
+    }
+    
+    /**
+     * Approximate G or F-function-related Spatial Distribution Index of cells population in a Obj/ROI,
+     * from the expected curve under complete spatial randomness (no random samples, no hard-core distance)
+     * @param popInt
+     * @param roiInt
+     * @param gFunction G-function, F-function otherwise
+     * @param plotName
+     * @return sdi, area under the observed curve, random samples used (0), time in ms
+     */
+    public double[] computeSdiCsr(Objects3DIntPopulation popInt, Object3DInt roiInt, boolean gFunction, String plotName) {
+        double[] centroids = Centroids.of(popInt, cal.pixelWidth, cal.pixelDepth);
+        RoiVoxels roi = RoiVoxels.of(roiInt, cal.pixelWidth, cal.pixelDepth);
+        CentroidDescriptor spatialDesc = gFunction ? new KdGFunction() : new KdFFunction(roi.randomPoints(2500, new SplittableRandom()));
+        CsrStatistics csrStatistics = new CsrStatistics(spatialDesc, roi, centroids);
+        csrStatistics.setEnvelope(0.05); // 2.5-97.5% envelope error
+        double sdi = csrStatistics.getSdi();
+        double area = csrStatistics.getAreaCurve();
+        long time = csrStatistics.getElapsedTime();
+        if (sdiVerbose) print("Approximate SDI "+(gFunction ? "G" : "F")+" = "+String.format("%.3f", sdi)+" in "+time+" ms");
         
-        // Define spatial descriptor and model
-        SpatialDescriptor spatialDesc = new F_Function(2500, roi); // nb of points used to compute the F-function    
-        SpatialModel spatialModel = new SpatialRandomHardCore(pop.getNbObjects(), distHardCore, roi); // average diameter of a cell in pixels
-        SpatialStatistics spatialStatistics = new SpatialStatistics(spatialDesc, spatialModel, numRandomSamples, pop); // nb of samples (randomized organizations simulated to compare with the spatial organization of the cells)
+        Plot plot = csrStatistics.getPlot();
+        plot.draw();
+        plot.addLabel(0.1, 0.1, "SDI ~ " + String.format("%.3f", sdi));
+        ImagePlus imgPlot = plot.getImagePlus();
+        FileSaver plotSave = new FileSaver(imgPlot);
+        plotSave.saveAsTiff(plotName);
+        flush_close(imgPlot); 
+        double[] results = {sdi, area, 0, time};
+        return(results);
+    }
+    
+    /**
+     * G and F-function-related Spatial Distribution Indexes of the cells of a population in each ROI.
+     * Centroids are read once for the whole population, a cell belonging to the ROI containing its
+     * centroid. In each ROI, G and F run at once on the same random samples and share their KD-trees,
+     * and plots are only drawn if a folder is given. Adaptive sampling is not used: G and F would stop
+     * at different numbers of samples and the samples drawn by only one of them would stay shared.
+     * @param popInt
+     * @param rois
+     * @param distHardCore
+     * @param numRandomSamples
+     * @param plotDir folder of the plots (null for no plot)
+     * @return one row per ROI: label, cells, sdi and area of G and F, random samples used by G and F, time in ms
+     */
+    public ResultsTable computeSdiBatch(Objects3DIntPopulation popInt, List<Object3DInt> rois, double distHardCore, int numRandomSamples, String plotDir) {
+        double[] all = Centroids.of(popInt, cal.pixelWidth, cal.pixelDepth);
+        SplittableRandom random = new SplittableRandom();
+        ResultsTable table = new ResultsTable();
+        // F runs next to G on its own thread, not on the common pool
+        ExecutorService exe = Executors.newSingleThreadExecutor();
+        try {
+            for (Object3DInt roiInt : rois) {
+                long start = System.currentTimeMillis();
+                RoiVoxels roi = RoiVoxels.of(roiInt, cal.pixelWidth, cal.pixelDepth);
+                // cells of the ROI
+                double[] inside = new double[all.length];
+                int nb = 0;
+                for (int i = 0; i < all.length / 3; i++) {
+                    if (roi.contains(all[3*i], all[3*i + 1], all[3*i + 2])) {
+                        System.arraycopy(all, 3*i, inside, 3*nb, 3);
+                        nb++;
+                    }
+                }
+                double[] centroids = Arrays.copyOf(inside, 3*nb);
+                table.incrementCounter();
+                table.addValue("ROI", roiInt.getLabel());
+                table.addValue("Cells", nb);
+                if (nb < 2) {
+                    print("ROI "+(int)roiInt.getLabel()+": less than 2 cells, no SDI");
+                    for (String col : new String[]{"SDI G", "Area G", "SDI F", "Area F", "Samples G", "Samples F"}) {
+                        table.addValue(col, Double.NaN);
+                    }
+                    table.addValue("Time (ms)", System.currentTimeMillis() - start);
+                    continue;
+                }
+                String plotG = (plotDir == null) ? null : plotDir + File.separator + "ROI" + (int)roiInt.getLabel() + "_G.tif";
+                String plotF = (plotDir == null) ? null : plotDir + File.separator + "ROI" + (int)roiInt.getLabel() + "_F.tif";
+                double[] evalPoints = roi.randomPoints(2500, random);
+                double sdiG = Double.NaN, areaG = 0, sdiF = Double.NaN, areaF = 0;
+                int samplesG = 0, samplesF = 0;
+                boolean monteCarlo = true;
+                if (sdiAnalytical && distHardCore <= 0) {
+                    CsrStatistics csrG = new CsrStatistics(new KdGFunction(), roi, centroids);
+                    CsrStatistics csrF = new CsrStatistics(new KdFFunction(evalPoints), roi, centroids);
+                    sdiG = csrG.getSdi();
+                    sdiF = csrF.getSdi();
+                    monteCarlo = Math.min(sdiG, sdiF) < sdiEscalate || Math.max(sdiG, sdiF) > 1 - sdiEscalate;
+                    if (!monteCarlo) {
+                        areaG = csrG.getAreaCurve();
+                        areaF = csrF.getAreaCurve();
+                        if (plotDir != null) {
+                            saveSdiPlot(csrG.getPlot(), "SDI ~ " + String.format("%.3f", sdiG), plotG);
+                            saveSdiPlot(csrF.getPlot(), "SDI ~ " + String.format("%.3f", sdiF), plotF);
+                        }
+                    }
+                }
+                if (monteCarlo) {
+                    // same seed: G and F draw the same samples, each sample and its tree built once
+                    SharedSamples shared = new SharedSamples(new HardCoreModel(nb, distHardCore, roi), 2);
+                    shared.register(centroids);
+                    SpatialStatistics statsG = new SpatialStatistics(new KdGFunction(shared), shared, numRandomSamples, centroids);
+                    SpatialStatistics statsF = new SpatialStatistics(new KdFFunction(evalPoints, shared), shared, numRandomSamples, centroids);
+                    long seed = random.nextLong();
+                    configureSdi(statsG);
+                    configureSdi(statsF);
+                    statsG.setSeed(seed);
+                    statsF.setSeed(seed);
+                    statsG.setAdaptive(false);
+                    statsF.setAdaptive(false);
+                    try {
+                        CompletableFuture<Double> futureF = CompletableFuture.supplyAsync(statsF::getSdi, exe);
+                        sdiG = statsG.getSdi();
+                        sdiF = futureF.join();
+                    } finally {
+                        shared.clear();
+                    }
+                    areaG = statsG.getAreaCurve();
+                    areaF = statsF.getAreaCurve();
+                    samplesG = statsG.getNbSamplesUsed();
+                    samplesF = statsF.getNbSamplesUsed();
+                    if (plotDir != null) {
+                        saveSdiPlot(statsG.getPlot(), "SDI = " + String.format("%.3f", sdiG), plotG);
+                        saveSdiPlot(statsF.getPlot(), "SDI = " + String.format("%.3f", sdiF), plotF);
+                    }
+                }
+                long time = System.currentTimeMillis() - start;
+                if (sdiVerbose) print("ROI "+(int)roiInt.getLabel()+": SDI G = "+String.format("%.3f", sdiG)+", SDI F = "+String.format("%.3f", sdiF)+" in "+time+" ms");
+                table.addValue("SDI G", sdiG);
+                table.addValue("Area G", areaG);
+                table.addValue("SDI F", sdiF);
+                table.addValue("Area F", areaF);
+                table.addValue("Samples G", samplesG);
+                table.addValue("Samples F", samplesF);
+                table.addValue("Time (ms)", time);
+            }
+        } finally {
+            exe.shutdown();
+        }
+        return(table);
+    }
+    
+    /**
+     * Apply the SDI settings of the toolbox
+     * @param spatialStatistics
+     */
+    private void configureSdi(SpatialStatistics spatialStatistics) {
         spatialStatistics.setEnvelope(0.05); // 2.5-97.5% envelope error
         spatialStatistics.setVerbose(false);
-        double sdiG = spatialStatistics.getSdi();
+        spatialStatistics.setSinglePass(sdiSinglePass);
+        spatialStatistics.setAverageSplit(sdiAverageSplit);
+        if (sdiParallelism > 0) spatialStatistics.setParallelism(sdiParallelism);
+        spatialStatistics.setStreaming(sdiStreaming);
+        spatialStatistics.setAdaptive(sdiAdaptive);
+        spatialStatistics.setTolerance(sdiTolerance);
+    }
+    
+    /**
+     * Save a SDI plot as tiff
+     * @param plot
+     * @param label
+     * @param plotName
+     */
+    private void saveSdiPlot(Plot plot, String label, String plotName) {
+        plot.draw();
+        plot.addLabel(0.1, 0.1, label);
+        ImagePlus imgPlot = plot.getImagePlus();
+        FileSaver plotSave = new FileSaver(imgPlot);
+        plotSave.saveAsTiff(plotName);
+        flush_close(imgPlot);
+    }
+    
+    /**
+     * Compute L-function-related Spatial Distribution Index of cells population in a Obj/ROI
+     * (Ripley K-function with isotropic edge correction, at 50 radii up to rMax).
+     * The sdi is the fraction of random samples whose signed maximal deviation of L to the average
+     * is lower than the observed one: high for clustering (L above the average), low for regularity
+     * @param popInt
+     * @param roiInt
+     * @param distHardCore
+     * @param rMax largest radius (calibrated)
+     * @param numRandomSamples
+     * @param plotName
+     * @return sdi, area under the observed curve, random samples used, time in ms
+     */
+    public double[] computeSdiL(Objects3DIntPopulation popInt, Object3DInt roiInt, double distHardCore, double rMax, int numRandomSamples, String plotName) {
+        double[] centroids = Centroids.of(popInt, cal.pixelWidth, cal.pixelDepth);
+        RoiVoxels roi = RoiVoxels.of(roiInt, cal.pixelWidth, cal.pixelDepth);
+        CentroidModel spatialModel = new HardCoreModel(popInt.getNbObjects(), distHardCore, roi);
+        LFunction spatialDesc = new LFunction(roi, rMax, 50, RipleyFunction.EdgeCorrection.ISOTROPIC);
+        SpatialStatistics spatialStatistics = new SpatialStatistics(spatialDesc, spatialModel, numRandomSamples, centroids);
+        spatialStatistics.setEnvelope(0.05); // 2.5-97.5% envelope error
+        spatialStatistics.setVerbose(false);
+        if (sdiParallelism > 0) spatialStatistics.setParallelism(sdiParallelism);
+        double sdiL = spatialStatistics.getSdi();
         double area = spatialStatistics.getAreaCurve();
+        int samplesUsed = spatialStatistics.getNbSamplesUsed();
+        long time = spatialStatistics.getElapsedTime();
+        if (sdiVerbose) print("SDI L = "+String.format("%.3f", sdiL)+" from "+samplesUsed+" random samples in "+time+" ms");
         
-        Plot plotG = spatialStatistics.getPlot();
-        plotG.draw();
-        plotG.addLabel(0.1, 0.1, "SDI = " + String.format("%.3f", sdiG));
-        ImagePlus imgPlot = plotG.getImagePlus();
+        Plot plotL = spatialStatistics.getPlot();
+        plotL.draw();
+        plotL.addLabel(0.1, 0.1, "SDI = " + String.format("%.3f", sdiL));
+        ImagePlus imgPlot = plotL.getImagePlus();
         FileSaver plotSave = new FileSaver(imgPlot);
         plotSave.saveAsTiff(plotName);
         flush_close(imgPlot); 
-        double[] results = {sdiG, area};
+        double[] results = {sdiL, area, samplesUsed, time};
         return(results);
     }
     
@@ -0,0 +1,144 @@
+"""
+Long-lived Cellpose worker for the Orion toolbox.
+
+Models are loaded once and kept for the next requests. Requests are read from stdin, one per line,
+fields separated by tabs:
+
+    PING
+    EVAL<TAB>key=value<TAB>...<TAB>file=/path/img1.tif<TAB>file=/path/img2.tif
+    QUIT
+
+Each request gets exactly one reply line on stdout, starting with "@@cellpose ":
+
+    @@cellpose OK<TAB>payload...
+    @@cellpose ERR<TAB>message
+
+EVAL replies with the paths of the masks, saved next to each image as <name>_cp_masks.tif,
+like the cellpose command line, or as <name>_cp_masks.npy for .npy images. Everything else printed by cellpose or torch goes to stderr.
+With flows=true, the flows and cell probability of 2D images are also saved as <name>_cp_flows.npy,
+a float32 array (3, Y, X): dy, dx and cell probability, for re-thresholding without the network.
+
+Models and options follow the cellpose command line: built-in cyto, cyto2 and nuclei models come with
+their size model (diameter 0 = estimated), fast_mode turns off network averaging and resampling, and
+resample is only sent by versions whose command line has a --resample flag.
+"""
+import inspect
+import os
+import sys
+import traceback
+
+PREFIX = "@@cellpose "
+reply_stream = sys.stdout
+# keep library prints away from the protocol
+sys.stdout = sys.stderr
+
+models = {}
+# models with a size model, run through models.Cellpose like the command line
+SIZE_MODELS = ("cyto", "cyto2", "nuclei")
+
+
+def reply(status, *fields):
+    reply_stream.write(PREFIX + "\t".join((status,) + fields) + "\n")
+    reply_stream.flush()
+
+
+def get_model(params):
+    from cellpose import models as cp_models
+    model = params["model"]
+    gpu = params.get("gpu", "false") == "true"
+    omni = params.get("omni", "false") == "true"
+    key = (model, gpu, omni)
+    if key not in models:
+        kwargs = {"gpu": gpu}
+        if omni:
+            kwargs["omni"] = True
+        if os.path.exists(model):
+            kwargs["pretrained_model"] = model
+        else:
+            kwargs["model_type"] = model
+        if model in SIZE_MODELS and not omni and not os.path.exists(model):
+            models[key] = cp_models.Cellpose(**kwargs)
+        else:
+            models[key] = cp_models.CellposeModel(**kwargs)
+    return models[key]
+
+
+def evaluate(params, files):
+    from cellpose import io
+    import numpy as np
+    model = get_model(params)
+    chan = int(params.get("chan", "0"))
+    chan2 = int(params.get("chan2", "-1"))
+    fast = params.get("fast_mode", "false") == "true"
+    kwargs = {
+        "channels": [chan, max(chan2, 0)],
+        "diameter": float(params.get("diameter", "0")) or None,
+        "flow_threshold": float(params.get("flow_threshold", "0.4")),
+        "cellprob_threshold": float(params.get("cellprob_threshold", "0.0")),
+        "do_3D": params.get("do_3D", "false") == "true",
+        "invert": params.get("invert", "false") == "true",
+        "net_avg": not fast,
+        # command lines without --resample resample unless in fast mode
+        "resample": params["resample"] == "true" if "resample" in params else not fast,
+    }
+    stitch = float(params.get("stitch_threshold", "-1"))
+    if stitch > 0:
+        kwargs["stitch_threshold"] = stitch
+        kwargs["do_3D"] = False
+    if params.get("omni", "false") == "true":
+        kwargs["omni"] = True
+        kwargs["cluster"] = params.get("cluster", "false") == "true"
+    # keyword names changed between cellpose versions (mask_threshold in 0.7 and 1.0)
+    accepted = inspect.signature(model.eval).parameters
+    if "cellprob_threshold" not in accepted and "mask_threshold" in accepted:
+        kwargs["mask_threshold"] = kwargs.pop("cellprob_threshold")
+    if not any(p.kind == p.VAR_KEYWORD for p in accepted.values()):
+        kwargs = {k: v for k, v in kwargs.items() if k in accepted}
+    masks_paths = []
+    for f in files:
+        base, ext = os.path.splitext(f)
+        # .npy files (tmpfs exchange) are memory-mapped, not copied
+        img = np.asarray(np.load(f, mmap_mode="r")) if ext == ".npy" else io.imread(f)
+        out = model.eval(img, **kwargs)
+        masks = out[0]
+        if params.get("flows", "false") == "true" and out[1][1].ndim == 3:
+            dP, cellprob = out[1][1], out[1][2]
+            np.save(base + "_cp_flows.npy", np.concatenate([dP, cellprob[None]]).astype(np.float32))
+        dtype = np.uint16 if masks.max() < 65536 else np.uint32
+        path = base + "_cp_masks" + (".npy" if ext == ".npy" else ".tif")
+        if ext == ".npy":
+            np.save(path, masks.astype(dtype))
+        else:
+            io.imsave(path, masks.astype(dtype))
+        masks_paths.append(path)
+    return masks_paths
+
+
+def main():
+    for line in sys.stdin:
+        fields = line.rstrip("\n").split("\t")
+        cmd = fields[0]
+        try:
+            if cmd == "PING":
+                reply("OK", "pong")
+            elif cmd == "QUIT":
+                reply("OK", "bye")
+                break
+            elif cmd == "EVAL":
+                params = {}
+                files = []
+                for field in fields[1:]:
+                    key, _, value = field.partition("=")
+                    if key == "file":
+                        files.append(value)
+                    else:
+                        params[key] = value
+                reply("OK", *evaluate(params, files))
+            else:
+                reply("ERR", "unknown command " + cmd)
+        except Exception:
+            reply("ERR", traceback.format_exc().replace("\n", " | "))
+
+
+if __name__ == "__main__":
+    main()